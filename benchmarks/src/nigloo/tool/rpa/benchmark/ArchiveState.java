@@ -0,0 +1,44 @@
+package nigloo.tool.rpa.benchmark;
+
+import nigloo.tool.rpa.RenPyArchive.Version;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Synthetic archive a benchmark runs on, generated according to the benchmark parameters.
+ */
+@State(Scope.Benchmark)
+public class ArchiveState
+{
+    @Param({"V2", "V3"})
+    public String version;
+
+    @Param({"1000", "10000"})
+    public int files;
+
+    @Param({"FIXED_4K", "GAME"})
+    public SizeDistribution distribution;
+
+    public Path archive;
+
+    @Setup
+    public void generate() throws IOException
+    {
+        archive = SyntheticArchives.get(version(), files, distribution);
+    }
+
+    public Version version()
+    {
+        return switch (version) {
+            case "V2" -> Version.V2;
+            case "V3" -> Version.V3;
+            default -> throw new IllegalArgumentException("Unsupported version: "+version);
+        };
+    }
+}
@@ -0,0 +1,79 @@
+package nigloo.tool.rpa.benchmark;
+
+import nigloo.tool.rpa.ExtractOptions;
+import nigloo.tool.rpa.ExtractResult;
+import nigloo.tool.rpa.RenPyArchive;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Extraction of all the files of an archive to an empty directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExtractBenchmark
+{
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private RenPyArchive archive;
+    private Path output;
+
+    @Setup
+    public void open(ArchiveState state) throws IOException
+    {
+        archive = new RenPyArchive(state.archive, null, null, null, false);
+    }
+
+    @TearDown
+    public void close() throws IOException
+    {
+        archive.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void createOutput() throws IOException
+    {
+        output = Files.createTempDirectory(SyntheticArchives.directory(), "extract");
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteOutput() throws IOException
+    {
+        try (Stream<Path> walk = Files.walk(output)) {
+            for (Path path : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<ExtractResult> extractAll() throws IOException
+    {
+        return archive.extractAll(output, new ExtractOptions().parallelism(parallelism));
+    }
+}
@@ -0,0 +1,34 @@
+package nigloo.tool.rpa.benchmark;
+
+import nigloo.tool.rpa.RenPyArchive;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening of an archive, dominated by the decoding of its index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OpenBenchmark
+{
+    @Benchmark
+    public void open(ArchiveState state, Blackhole blackhole) throws IOException
+    {
+        try (RenPyArchive archive = new RenPyArchive(state.archive, null, null, null, false)) {
+            blackhole.consume(archive);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package nigloo.tool.rpa.benchmark;
+
+import nigloo.tool.rpa.RenPyArchive;
+import nigloo.tool.rpa.VerifyResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of single files of an opened archive, in random order or in the order of their data, and read of all the
+ * files at once with {@link RenPyArchive#readAll}. The archive is usually in the page cache after the warmup, so this
+ * measures the cost of the reads themselves rather than of the disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark
+{
+    @Param({"false", "true"})
+    public boolean memoryMapped;
+
+    private RenPyArchive archive;
+    private Path[] byOffset;
+    private Path[] shuffled;
+    private int next = 0;
+
+    @Setup
+    public void open(ArchiveState state) throws IOException
+    {
+        archive = new RenPyArchive(state.archive, null, null, null, false, memoryMapped);
+        // Verification results are in the order of the data.
+        byOffset = archive.verify().results().stream().map(VerifyResult::filename).toArray(Path[]::new);
+
+        shuffled = Arrays.copyOf(byOffset, byOffset.length);
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = shuffled.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            Path tmp = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = tmp;
+        }
+    }
+
+    @TearDown
+    public void close() throws IOException
+    {
+        archive.close();
+    }
+
+    private int next()
+    {
+        int i = next;
+        next = i + 1 == byOffset.length ? 0 : i + 1;
+        return i;
+    }
+
+    @Benchmark
+    public byte[] randomRead() throws IOException
+    {
+        return archive.read(shuffled[next()]);
+    }
+
+    @Benchmark
+    public byte[] sequentialRead() throws IOException
+    {
+        return archive.read(byOffset[next()]);
+    }
+
+    @Benchmark
+    public ByteBuffer randomSlice() throws IOException
+    {
+        return archive.slice(shuffled[next()]);
+    }
+
+    /**
+     * Read of all the files, in a few large reads.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void readAll(Blackhole blackhole) throws IOException
+    {
+        archive.readAll(Arrays.asList(byOffset), (filename, content) -> blackhole.consume(content));
+    }
+}
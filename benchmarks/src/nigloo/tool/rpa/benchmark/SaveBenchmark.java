@@ -0,0 +1,62 @@
+package nigloo.tool.rpa.benchmark;
+
+import nigloo.tool.rpa.RenPyArchive;
+import nigloo.tool.rpa.SaveOptions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Save of an opened archive to a new file: its files are transferred from the archive and its index is rebuilt.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SaveBenchmark
+{
+    @Param({"false", "true"})
+    public boolean deduplicate;
+
+    private RenPyArchive archive;
+    private Path target;
+
+    @Setup(Level.Iteration)
+    public void open(ArchiveState state) throws IOException
+    {
+        // Saving reloads the archive from the saved file, so each save starts from the original archive.
+        archive = new RenPyArchive(state.archive, null, null, null, false);
+        target = SyntheticArchives.directory().resolve("save-"+ProcessHandle.current().pid()+".rpa");
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException
+    {
+        archive.close();
+        Files.deleteIfExists(target);
+    }
+
+    @Benchmark
+    public void save() throws IOException
+    {
+        archive.save(target, new SaveOptions().deduplicate(deduplicate));
+    }
+}
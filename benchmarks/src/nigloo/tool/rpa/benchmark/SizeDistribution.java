@@ -0,0 +1,49 @@
+package nigloo.tool.rpa.benchmark;
+
+import java.util.SplittableRandom;
+
+/**
+ * Distribution of the sizes of the files of a synthetic archive.
+ */
+public enum SizeDistribution
+{
+    /**
+     * All files of 4 KiB.
+     */
+    FIXED_4K
+    {
+        @Override
+        public int size(SplittableRandom random)
+        {
+            return 4096;
+        }
+    },
+    /**
+     * Uniform between 1 byte and 64 KiB.
+     */
+    UNIFORM_64K
+    {
+        @Override
+        public int size(SplittableRandom random)
+        {
+            return random.nextInt(1, 64 * 1024 + 1);
+        }
+    },
+    /**
+     * Log-normal, median of 16 KiB, capped to 16 MiB: mostly small scripts and images, with a few large images,
+     * sounds and videos, as in the archives of a game.
+     */
+    GAME
+    {
+        @Override
+        public int size(SplittableRandom random)
+        {
+            // Box-Muller transform, sigma of 1.5 so that about 1 file in 100 is over 500 KiB.
+            double gaussian = Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+            double size = 16 * 1024 * Math.exp(1.5 * gaussian);
+            return (int) Math.max(1, Math.min(size, 16 * 1024 * 1024));
+        }
+    };
+
+    public abstract int size(SplittableRandom random);
+}
@@ -0,0 +1,68 @@
+package nigloo.tool.rpa.benchmark;
+
+import nigloo.tool.rpa.RenPyArchive;
+import nigloo.tool.rpa.RenPyArchive.Version;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+/**
+ * Generator of synthetic Ren'Py archives of random content, reproducible from their parameters.
+ */
+public final class SyntheticArchives
+{
+    private static final long SEED = 0x5EEDL;
+    private static final int FILES_PER_DIRECTORY = 100;
+
+    private SyntheticArchives() {}
+
+    /**
+     * Directory of the generated archives, kept between runs.
+     */
+    public static Path directory()
+    {
+        return Path.of(System.getProperty("java.io.tmpdir"), "rpa-benchmarks");
+    }
+
+    /**
+     * Get a synthetic archive, generating it in {@link #directory()} the first time.
+     */
+    public static Path get(Version version, int nbFiles, SizeDistribution distribution) throws IOException
+    {
+        Path file = directory().resolve("v"+version.major()+"-"+nbFiles+"-"+distribution+".rpa");
+        if (!Files.exists(file)) {
+            Files.createDirectories(file.getParent());
+            generate(file, version, nbFiles, distribution, SEED);
+        }
+        return file;
+    }
+
+    /**
+     * Generate an archive of random files, with sizes following the given distribution. The files are spread in
+     * directories of {@value #FILES_PER_DIRECTORY} files. Contents are generated when the archive is written, so
+     * the archive is never held in memory.
+     */
+    public static void generate(Path file, Version version, int nbFiles, SizeDistribution distribution, long seed) throws IOException
+    {
+        SplittableRandom random = new SplittableRandom(seed);
+        try (RenPyArchive archive = new RenPyArchive(null, version, null, null, false)) {
+            for (int i = 0; i < nbFiles; i++) {
+                Path filename = Path.of(String.format("game/images/dir%04d/file%07d.png", i / FILES_PER_DIRECTORY, i));
+                int size = distribution.size(random);
+                long contentSeed = random.nextLong();
+                archive.add(filename, () -> new ByteArrayInputStream(content(size, contentSeed)));
+            }
+            archive.save(file);
+        }
+    }
+
+    private static byte[] content(int size, long seed)
+    {
+        byte[] content = new byte[size];
+        new SplittableRandom(seed).nextBytes(content);
+        return content;
+    }
+}
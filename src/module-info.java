@@ -1,5 +1,6 @@
 open module nigloo.tools {
 	requires java.logging;
+	requires jdk.jfr;
 	requires transitive java.net.http;
 	
 	requires transitive javafx.base;
@@ -22,5 +23,8 @@ open module nigloo.tools {
 	exports nigloo.tool.javafx.component;
 	exports nigloo.tool.javafx.component.dialog;
 	exports nigloo.tool.parser.grammar;
+	exports nigloo.tool.rpa;
 	exports nigloo.tool.thread;
+	
+	provides java.nio.file.spi.FileSystemProvider with nigloo.tool.rpa.RpaFileSystemProvider;
 }
\ No newline at end of file
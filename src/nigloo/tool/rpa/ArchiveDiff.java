@@ -0,0 +1,238 @@
+package nigloo.tool.rpa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Differences between two archives, by file name, and delta archives built from them.
+ * <p>
+ * A delta archive is a regular archive containing the added and changed files of the new archive, and a manifest
+ * listing the files to take from the old archive. {@link #apply(Path, Path, Path)} rebuilds the new archive from the
+ * old one and the delta, copying the unchanged files from the old archive. The manifest is stored under
+ * {@link #MANIFEST_NAME}, so a new archive with a file of that name cannot be delta encoded.
+ *
+ * @param added     the files only in the new archive
+ * @param removed   the files only in the old archive
+ * @param changed   the files in both archives, with different contents
+ * @param unchanged the files in both archives, with the same content
+ */
+public record ArchiveDiff(List<Path> added, List<Path> removed, List<Path> changed, List<Path> unchanged)
+{
+    /**
+     * Name of the manifest in delta archives.
+     */
+    public static final String MANIFEST_NAME = "__delta__/manifest";
+
+    private static final String MANIFEST_HEADER = "RPA-DELTA 1";
+    private static final int COMPARE_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Compare two archives, with as many workers as available processors.
+     *
+     * @see #compare(RenPyArchive, RenPyArchive, int)
+     */
+    public static ArchiveDiff compare(RenPyArchive oldArchive, RenPyArchive newArchive) throws IOException
+    {
+        return compare(oldArchive, newArchive, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Compare two archives. Files are matched by name, then by size, and only the contents of the files with the same
+     * size in both archives are read, by several workers, until they differ.
+     */
+    public static ArchiveDiff compare(RenPyArchive oldArchive, RenPyArchive newArchive, int parallelism) throws IOException
+    {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: "+parallelism);
+        }
+
+        Set<Path> oldFiles = new HashSet<>(oldArchive.list());
+        List<Path> added = new ArrayList<>();
+        List<Path> changed = new ArrayList<>();
+        List<Path> candidates = new ArrayList<>();
+        for (Path filename : newArchive.list()) {
+            if (!oldFiles.remove(filename)) {
+                added.add(filename);
+            }
+            else if (oldArchive.size(filename) != newArchive.size(filename)) {
+                changed.add(filename);
+            }
+            else {
+                candidates.add(filename);
+            }
+        }
+        List<Path> removed = new ArrayList<>(oldFiles);
+
+        // Read the new archive sequentially.
+        candidates.sort(Comparator.comparingLong(newArchive::dataOffset));
+        boolean[] same = new boolean[candidates.size()];
+        RenPyArchive.runWorkers(same.length, parallelism, null, () -> {
+            ByteBuffer oldBuffer = ByteBuffer.allocate(COMPARE_BUFFER_SIZE);
+            ByteBuffer newBuffer = ByteBuffer.allocate(COMPARE_BUFFER_SIZE);
+            return i -> same[i] = sameContent(oldArchive, newArchive, candidates.get(i), oldBuffer, newBuffer);
+        });
+
+        List<Path> unchanged = new ArrayList<>();
+        for (int i = 0; i < same.length; i++) {
+            (same[i] ? unchanged : changed).add(candidates.get(i));
+        }
+
+        Comparator<Path> byName = Comparator.comparing(RenPyArchive::convertFilename);
+        added.sort(byName);
+        removed.sort(byName);
+        changed.sort(byName);
+        unchanged.sort(byName);
+        return new ArchiveDiff(List.copyOf(added), List.copyOf(removed), List.copyOf(changed), List.copyOf(unchanged));
+    }
+
+    private static boolean sameContent(RenPyArchive oldArchive, RenPyArchive newArchive, Path filename,
+                                       ByteBuffer oldBuffer, ByteBuffer newBuffer) throws IOException
+    {
+        try (SeekableByteChannel oldChannel = oldArchive.openChannel(filename);
+             SeekableByteChannel newChannel = newArchive.openChannel(filename))
+        {
+            while (true) {
+                int oldRead = readFully(oldChannel, oldBuffer.clear());
+                int newRead = readFully(newChannel, newBuffer.clear());
+                if (oldRead != newRead || !oldBuffer.flip().equals(newBuffer.flip())) {
+                    return false;
+                }
+                if (oldRead < COMPARE_BUFFER_SIZE) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static int readFully(SeekableByteChannel channel, ByteBuffer dst) throws IOException
+    {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * True if both archives have the same files with the same contents.
+     */
+    public boolean isEmpty()
+    {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    /**
+     * Write the delta archive from the old archive to the given new archive, which must be the one this diff was
+     * computed with.
+     *
+     * @throws IllegalArgumentException if the new archive has a file named {@link #MANIFEST_NAME}
+     */
+    public void writeDelta(RenPyArchive newArchive, Path target) throws IOException
+    {
+        if (newArchive.hasFile(Path.of(MANIFEST_NAME))) {
+            throw new IllegalArgumentException("File name reserved for the delta manifest: "+MANIFEST_NAME);
+        }
+
+        StringBuilder manifest = new StringBuilder(MANIFEST_HEADER).append('\n');
+        for (Path filename : unchanged) {
+            String name = RenPyArchive.convertFilename(filename);
+            if (name.indexOf('\n') >= 0) {
+                throw new IllegalArgumentException("File name with a line break not supported: "+name);
+            }
+            manifest.append(newArchive.size(filename)).append(' ').append(name).append('\n');
+        }
+
+        try (RenPyArchive delta = new RenPyArchive(null, RenPyArchive.Version.V3, null, null, false)) {
+            for (Path filename : added) {
+                delta.add(filename, () -> newArchive.openStream(filename));
+            }
+            for (Path filename : changed) {
+                delta.add(filename, () -> newArchive.openStream(filename));
+            }
+            delta.add(Path.of(MANIFEST_NAME), manifest.toString().getBytes(StandardCharsets.UTF_8));
+            delta.save(target);
+        }
+    }
+
+    /**
+     * Rebuild a new archive from an old archive and a delta archive. The files listed by the manifest of the delta are
+     * copied from the old archive, then the other files of the delta are added. The rebuilt archive has the same
+     * version and key as the old one, which must be a version 2 or 3 archive since other versions cannot be saved.
+     *
+     * @throws IOException if the old archive has another version, or if a file listed by the manifest is missing from
+     *                     it or has another size
+     */
+    public static void apply(Path oldArchive, Path delta, Path target) throws IOException
+    {
+        try (RenPyArchive base = new RenPyArchive(oldArchive, null, null, null, false);
+             RenPyArchive patch = new RenPyArchive(delta, null, null, null, false))
+        {
+            RenPyArchive.Version version = base.getVersion();
+            if (!List.of(RenPyArchive.Version.V2, RenPyArchive.Version.V3).contains(version)) {
+                throw new IOException("Deltas can only be applied to version 2 and 3 archives, "+oldArchive
+                                      +" is version "+version.major()+"."+version.minor());
+            }
+            Path manifestName = Path.of(MANIFEST_NAME);
+            if (!patch.hasFile(manifestName)) {
+                throw new IOException(delta+" is not a delta archive");
+            }
+            Map<Path, Long> kept = parseManifest(new String(patch.read(manifestName), StandardCharsets.UTF_8), delta);
+            if (kept.containsKey(manifestName)) {
+                throw new IOException("Invalid delta manifest in "+delta+": lists "+MANIFEST_NAME);
+            }
+
+            for (Map.Entry<Path, Long> entry : kept.entrySet()) {
+                if (!base.hasFile(entry.getKey()) || base.size(entry.getKey()) != entry.getValue()) {
+                    throw new IOException(oldArchive+" does not match the delta: "+entry.getKey()+" differs");
+                }
+            }
+            for (Path filename : base.list()) {
+                if (!kept.containsKey(filename)) {
+                    base.remove(filename);
+                }
+            }
+            for (Path filename : patch.list()) {
+                if (!filename.equals(manifestName)) {
+                    base.add(filename, () -> patch.openStream(filename));
+                }
+            }
+            base.save(target);
+        }
+    }
+
+    private static Map<Path, Long> parseManifest(String manifest, Path delta) throws IOException
+    {
+        String[] lines = manifest.split("\n");
+        if (!lines[0].equals(MANIFEST_HEADER)) {
+            throw new IOException("Unsupported delta manifest in "+delta+": "+lines[0]);
+        }
+        Map<Path, Long> kept = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].isEmpty()) {
+                continue;
+            }
+            int sep = lines[i].indexOf(' ');
+            try {
+                kept.put(Path.of(lines[i].substring(sep + 1)), Long.parseLong(lines[i].substring(0, sep)));
+            }
+            catch (IndexOutOfBoundsException | NumberFormatException e) {
+                throw new IOException("Invalid delta manifest line in "+delta+": "+lines[i], e);
+            }
+        }
+        return kept;
+    }
+}
@@ -0,0 +1,185 @@
+package nigloo.tool.rpa;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.nio.file.Path;
+
+/**
+ * JFR events of Ren'Py archives, so that recordings show archive I/O next to the rest. They are committed only when
+ * enabled in the recording, the file system reads of the archives themselves are the JDK file read events.
+ * <p>
+ * Each event is begun before its operation, and completed with its fields afterward.
+ */
+final class ArchiveEvents
+{
+    private static final String CATEGORY = "Ren'Py Archive";
+
+    private ArchiveEvents()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    private static String toString(Path path)
+    {
+        return path == null ? null : path.toString();
+    }
+
+    @Name("nigloo.rpa.Load")
+    @Label("Archive Load")
+    @Description("Opening of an archive, index included")
+    @Category(CATEGORY)
+    static final class Load extends Event
+    {
+        @Label("Archive")
+        String archive;
+
+        @Label("Files")
+        int files;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+
+        void complete(Path archive, int files, long size)
+        {
+            end();
+            if (shouldCommit()) {
+                this.archive = ArchiveEvents.toString(archive);
+                this.files = files;
+                this.size = size;
+                commit();
+            }
+        }
+    }
+
+    @Name("nigloo.rpa.IndexDecode")
+    @Label("Archive Index Decode")
+    @Description("Decoding of the index of an archive, not done when it is read from the index cache")
+    @Category(CATEGORY)
+    static final class IndexDecode extends Event
+    {
+        @Label("Archive")
+        String archive;
+
+        @Label("Files")
+        int files;
+
+        @Label("Index Size")
+        @Description("Size of the compressed index")
+        @DataAmount
+        long indexSize;
+
+        void complete(Path archive, int files, long indexSize)
+        {
+            end();
+            if (shouldCommit()) {
+                this.archive = ArchiveEvents.toString(archive);
+                this.files = files;
+                this.indexSize = indexSize;
+                commit();
+            }
+        }
+    }
+
+    @Name("nigloo.rpa.Read")
+    @Label("Archive File Read")
+    @Description("Read of a file of an archive as a whole")
+    @Category(CATEGORY)
+    static final class Read extends Event
+    {
+        @Label("Archive")
+        String archive;
+
+        @Label("File")
+        String filename;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Cached")
+        @Description("If the content was found in the content cache or the archive mapping")
+        boolean cached;
+
+        void complete(Path archive, Path filename, long bytes, boolean cached)
+        {
+            end();
+            if (shouldCommit()) {
+                this.archive = ArchiveEvents.toString(archive);
+                this.filename = ArchiveEvents.toString(filename);
+                this.bytes = bytes;
+                this.cached = cached;
+                commit();
+            }
+        }
+    }
+
+    @Name("nigloo.rpa.Extract")
+    @Label("Archive File Extract")
+    @Category(CATEGORY)
+    static final class Extract extends Event
+    {
+        @Label("Archive")
+        String archive;
+
+        @Label("File")
+        String filename;
+
+        @Label("Target")
+        String target;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        void complete(Path archive, Path filename, Path target, long bytes)
+        {
+            end();
+            if (shouldCommit()) {
+                this.archive = ArchiveEvents.toString(archive);
+                this.filename = ArchiveEvents.toString(filename);
+                this.target = ArchiveEvents.toString(target);
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    @Name("nigloo.rpa.Save")
+    @Label("Archive Save")
+    @Category(CATEGORY)
+    static final class Save extends Event
+    {
+        @Label("Archive")
+        String archive;
+
+        @Label("Files")
+        @Description("Number of files written")
+        int files;
+
+        @Label("Bytes")
+        @Description("Number of bytes written")
+        @DataAmount
+        long bytes;
+
+        @Label("Append")
+        boolean append;
+
+        void complete(Path archive, int files, long bytes, boolean append)
+        {
+            end();
+            if (shouldCommit()) {
+                this.archive = ArchiveEvents.toString(archive);
+                this.files = files;
+                this.bytes = bytes;
+                this.append = append;
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,597 @@
+package nigloo.tool.rpa;
+
+import nigloo.tool.rpa.RenPyArchive.IndexEntry;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Columnar index of the files of an archive.
+ * <p>
+ * Files are identified by their position in the index, sorted by name. Names are stored as a single UTF-8 pool and
+ * parts as primitive arrays, with their prefixes in a shared pool, so that an entry costs a few dozen bytes instead
+ * of a {@link Path}, a list and a record per file. Names are looked up through an open-addressing hash table.
+ * <p>
+ * Since names are sorted, the files whose name starts with a given prefix, such as all the files of a directory, are
+ * contiguous and found by binary search. Running totals of the file sizes make the size of such a range available in
+ * constant time once found.
+ * <p>
+ * The index is immutable, so it can be read from several threads without synchronization. Removing a file returns a
+ * copy of the index sharing all its columns, only the removal marks are copied. File ids are the same in the copy.
+ */
+final class ArchiveIndex
+{
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int nbFiles;
+    // Per file
+    private final byte[] names;
+    private final int[] nameStarts;
+    private final int[] partStarts;
+    // Per part
+    private final long[] offsets;
+    private final long[] lengths;
+    private final byte[] prefixes;
+    private final int[] prefixStarts;
+
+    // File id + 1, 0 for an empty slot
+    private final int[] table;
+    // Bit set of the removed file ids
+    private final long[] removed;
+    private final int nbRemoved;
+
+    /**
+     * Number and total size of the files not removed before each file id, the last element being the totals of the
+     * index.
+     */
+    private record Sums(int[] counts, long[] sizes) {}
+
+    // Computed on first use in copies. Computing it twice concurrently is harmless, and the record final field makes
+    // its arrays safely published.
+    private Sums sums;
+
+    /**
+     * Visitor of the children of a directory, see {@link #forEachChild(String, ChildVisitor)}.
+     */
+    interface ChildVisitor
+    {
+        void file(int id);
+
+        /**
+         * @param name    the name of the subdirectory, relative to the visited directory
+         * @param nbFiles the number of files in the subdirectory, recursively
+         * @param size    the total size of the files in the subdirectory, recursively
+         */
+        void directory(String name, int nbFiles, long size);
+    }
+
+    /**
+     * Build an index from its columns. Names must be sorted and unique, start arrays have one more element than
+     * the number of files (or parts), the last one being the end of the pool.
+     */
+    ArchiveIndex(int nbFiles, byte[] names, int[] nameStarts, int[] partStarts, long[] offsets, long[] lengths, byte[] prefixes, int[] prefixStarts)
+    {
+        this.nbFiles = nbFiles;
+        this.names = names;
+        this.nameStarts = nameStarts;
+        this.partStarts = partStarts;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.prefixes = prefixes;
+        this.prefixStarts = prefixStarts;
+        this.removed = new long[(nbFiles + 63) >>> 6];
+        this.nbRemoved = 0;
+
+        this.table = new int[Integer.highestOneBit(Math.max(nbFiles, 1) * 2 - 1) << 1];
+        int mask = table.length - 1;
+        for (int id = 0; id < nbFiles; id++) {
+            int slot = hash(names, nameStarts[id], nameStarts[id + 1]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+
+        this.sums = computeSums();
+    }
+
+    /**
+     * Copy of an index with other removal marks.
+     */
+    private ArchiveIndex(ArchiveIndex index, long[] removed, int nbRemoved)
+    {
+        this.nbFiles = index.nbFiles;
+        this.names = index.names;
+        this.nameStarts = index.nameStarts;
+        this.partStarts = index.partStarts;
+        this.offsets = index.offsets;
+        this.lengths = index.lengths;
+        this.prefixes = index.prefixes;
+        this.prefixStarts = index.prefixStarts;
+        this.table = index.table;
+        this.removed = removed;
+        this.nbRemoved = nbRemoved;
+    }
+
+    static ArchiveIndex empty()
+    {
+        return new ArchiveIndex(0, EMPTY, new int[1], new int[1], new long[0], new long[0], EMPTY, new int[1]);
+    }
+
+    private static int hash(byte[] bytes, int from, int to)
+    {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return (h ^ (h >>> 16)) * 0x9E3779B9;
+    }
+
+    /**
+     * Number of files in the index, including removed ones. File ids range from 0 to this number.
+     */
+    int nbFiles()
+    {
+        return nbFiles;
+    }
+
+    /**
+     * Number of files not removed.
+     */
+    int size()
+    {
+        return nbFiles - nbRemoved;
+    }
+
+    boolean isRemoved(int id)
+    {
+        return (removed[id >>> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * Find a file not removed.
+     *
+     * @return the file id or -1 if not found
+     */
+    int find(Path filename)
+    {
+        return find(RenPyArchive.convertFilename(filename));
+    }
+
+    int find(String name)
+    {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int mask = table.length - 1;
+        int slot = hash(key, 0, key.length) & mask;
+        int id;
+        while ((id = table[slot] - 1) >= 0) {
+            if (Arrays.equals(names, nameStarts[id], nameStarts[id + 1], key, 0, key.length)) {
+                return isRemoved(id) ? -1 : id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Copy of this index with a file marked as removed.
+     *
+     * @return the copy, or this index if the file is not in it
+     */
+    ArchiveIndex withRemoved(Path filename)
+    {
+        int id = find(filename);
+        if (id < 0) {
+            return this;
+        }
+        long[] removed = this.removed.clone();
+        removed[id >>> 6] |= 1L << id;
+        return new ArchiveIndex(this, removed, nbRemoved + 1);
+    }
+
+    String name(int id)
+    {
+        return new String(names, nameStarts[id], nameStarts[id + 1] - nameStarts[id], StandardCharsets.UTF_8);
+    }
+
+    Path path(int id)
+    {
+        return Path.of(name(id));
+    }
+
+    int nbParts(int id)
+    {
+        return partStarts[id + 1] - partStarts[id];
+    }
+
+    IndexEntry part(int id, int i)
+    {
+        int part = partStarts[id] + i;
+        int prefixStart = prefixStarts[part];
+        int prefixEnd = prefixStarts[part + 1];
+        byte[] prefix = prefixStart == prefixEnd ? EMPTY : Arrays.copyOfRange(prefixes, prefixStart, prefixEnd);
+        return new IndexEntry(offsets[part], lengths[part], prefix);
+    }
+
+    List<IndexEntry> parts(int id)
+    {
+        IndexEntry[] parts = new IndexEntry[nbParts(id)];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = part(id, i);
+        }
+        return List.of(parts);
+    }
+
+    /**
+     * Offset of the first part of a file, or {@link Long#MAX_VALUE} if the file has no part (an empty file), so that
+     * such files come last when sorting by offset.
+     */
+    long offset(int id)
+    {
+        return nbParts(id) == 0 ? Long.MAX_VALUE : offsets[partStarts[id]];
+    }
+
+    /**
+     * Size of a file: the sum of its parts, each made of its prefix followed by its data.
+     */
+    long size(int id)
+    {
+        long size = 0;
+        for (int part = partStarts[id]; part < partStarts[id + 1]; part++) {
+            int prefixLength = prefixStarts[part + 1] - prefixStarts[part];
+            size += prefixLength + Math.max(0, lengths[part] - prefixLength);
+        }
+        return size;
+    }
+
+    private Sums computeSums()
+    {
+        int[] countSums = new int[nbFiles + 1];
+        long[] sizeSums = new long[nbFiles + 1];
+        for (int id = 0; id < nbFiles; id++) {
+            boolean counted = !isRemoved(id);
+            countSums[id + 1] = countSums[id] + (counted ? 1 : 0);
+            sizeSums[id + 1] = sizeSums[id] + (counted ? size(id) : 0);
+        }
+        return new Sums(countSums, sizeSums);
+    }
+
+    private Sums sums()
+    {
+        Sums sums = this.sums;
+        if (sums == null) {
+            this.sums = sums = computeSums();
+        }
+        return sums;
+    }
+
+    /**
+     * Compare the name of a file, truncated to the length of the prefix, to the prefix. Since names are sorted, the
+     * result is monotonic in the file id, and 0 exactly for the files whose name starts with the prefix.
+     */
+    private int comparePrefix(int id, byte[] prefix, int prefixFrom, int prefixTo)
+    {
+        int nameStart = nameStarts[id];
+        int nameEnd = Math.min(nameStarts[id + 1], nameStart + prefixTo - prefixFrom);
+        return Arrays.compareUnsigned(names, nameStart, nameEnd, prefix, prefixFrom, prefixTo);
+    }
+
+    /**
+     * First file id in [from, to) whose name, truncated to the prefix length, is greater than (or equal to, if
+     * inclusive) the prefix, or to if there is none.
+     */
+    private int search(byte[] prefix, int prefixFrom, int prefixTo, int from, int to, boolean inclusive)
+    {
+        int threshold = inclusive ? 0 : 1;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (comparePrefix(mid, prefix, prefixFrom, prefixTo) < threshold) {
+                from = mid + 1;
+            }
+            else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * Range of the file ids whose name starts with the given prefix, removed files included.
+     *
+     * @return the first id of the range and the id following the range
+     */
+    private int[] range(String prefix)
+    {
+        byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+        int start = search(bytes, 0, bytes.length, 0, nbFiles, true);
+        int end = search(bytes, 0, bytes.length, start, nbFiles, false);
+        return new int[] {start, end};
+    }
+
+    /**
+     * Ids of the files not removed whose name starts with the given prefix, in name order.
+     */
+    int[] ids(String prefix)
+    {
+        int[] range = range(prefix);
+        int[] countSums = sums().counts();
+        int[] ids = new int[countSums[range[1]] - countSums[range[0]]];
+        int i = 0;
+        for (int id = range[0]; id < range[1] && i < ids.length; id++) {
+            if (!isRemoved(id)) {
+                ids[i++] = id;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Number of files not removed whose name starts with the given prefix.
+     */
+    int count(String prefix)
+    {
+        int[] range = range(prefix);
+        int[] countSums = sums().counts();
+        return countSums[range[1]] - countSums[range[0]];
+    }
+
+    /**
+     * Total size of the files not removed whose name starts with the given prefix.
+     */
+    long totalSize(String prefix)
+    {
+        int[] range = range(prefix);
+        long[] sizeSums = sums().sizes();
+        return sizeSums[range[1]] - sizeSums[range[0]];
+    }
+
+    /**
+     * Visit the files and subdirectories directly in a directory, in name order. Each subdirectory is visited once,
+     * with the totals of its content, by skipping over its files.
+     *
+     * @param directory the directory name followed by '/', or the empty string for the root
+     */
+    void forEachChild(String directory, ChildVisitor visitor)
+    {
+        int[] range = range(directory);
+        Sums sums = sums();
+        int[] countSums = sums.counts();
+        long[] sizeSums = sums.sizes();
+        int dirLength = directory.getBytes(StandardCharsets.UTF_8).length;
+
+        int id = range[0];
+        while (id < range[1]) {
+            int childStart = nameStarts[id] + dirLength;
+            int nameEnd = nameStarts[id + 1];
+            int sep = childStart;
+            while (sep < nameEnd && names[sep] != '/') {
+                sep++;
+            }
+
+            if (sep == nameEnd) {
+                if (!isRemoved(id)) {
+                    visitor.file(id);
+                }
+                id++;
+                continue;
+            }
+
+            // Skip the files of the subdirectory, whose names all start with the name of this one up to the '/'.
+            int subEnd = search(names, nameStarts[id], sep + 1, id, range[1], false);
+            int nbFiles = countSums[subEnd] - countSums[id];
+            if (nbFiles > 0) {
+                visitor.directory(new String(names, childStart, sep - childStart, StandardCharsets.UTF_8),
+                                  nbFiles,
+                                  sizeSums[subEnd] - sizeSums[id]);
+            }
+            id = subEnd;
+        }
+    }
+
+    /**
+     * Ids of the files not removed.
+     */
+    int[] ids()
+    {
+        int[] ids = new int[size()];
+        int i = 0;
+        for (int id = 0; id < nbFiles && i < ids.length; id++) {
+            if (!isRemoved(id)) {
+                ids[i++] = id;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Copy of this index without removed files.
+     */
+    ArchiveIndex compacted()
+    {
+        if (nbRemoved == 0) {
+            return this;
+        }
+        Builder builder = new Builder();
+        for (int id : ids()) {
+            builder.addFile(Arrays.copyOfRange(names, nameStarts[id], nameStarts[id + 1]));
+            for (int i = 0; i < nbParts(id); i++) {
+                IndexEntry part = part(id, i);
+                builder.addPart(part.offset(), part.length(), part.prefix());
+            }
+        }
+        return builder.build();
+    }
+
+    // Raw columns, for serialization
+
+    byte[] names()
+    {
+        return names;
+    }
+
+    int[] nameStarts()
+    {
+        return nameStarts;
+    }
+
+    int[] partStarts()
+    {
+        return partStarts;
+    }
+
+    long[] offsets()
+    {
+        return offsets;
+    }
+
+    long[] lengths()
+    {
+        return lengths;
+    }
+
+    byte[] prefixes()
+    {
+        return prefixes;
+    }
+
+    int[] prefixStarts()
+    {
+        return prefixStarts;
+    }
+
+    /**
+     * Builder of an index, files can be added in any order. If a name is added several times, the last one wins.
+     */
+    static final class Builder
+    {
+        private byte[] names = new byte[1 << 12];
+        private int namesLength = 0;
+        private int[] nameStarts = new int[64];
+        private int[] partStarts = new int[64];
+        private int nbFiles = 0;
+
+        private long[] offsets = new long[64];
+        private long[] lengths = new long[64];
+        private int[] prefixStarts = new int[64];
+        private byte[] prefixes = new byte[64];
+        private int prefixesLength = 0;
+        private int nbParts = 0;
+
+        void addFile(String name)
+        {
+            addFile(name.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void addFile(byte[] name)
+        {
+            if (nbFiles + 1 >= nameStarts.length) {
+                nameStarts = Arrays.copyOf(nameStarts, nameStarts.length * 2);
+                partStarts = Arrays.copyOf(partStarts, partStarts.length * 2);
+            }
+            if (namesLength + name.length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + name.length));
+            }
+            System.arraycopy(name, 0, names, namesLength, name.length);
+            nameStarts[nbFiles] = namesLength;
+            partStarts[nbFiles] = nbParts;
+            namesLength += name.length;
+            nbFiles++;
+        }
+
+        /**
+         * Add a part to the last added file.
+         */
+        void addPart(long offset, long length, byte[] prefix)
+        {
+            if (nbFiles == 0) {
+                throw new IllegalStateException("No file to add a part to");
+            }
+            if (nbParts + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                lengths = Arrays.copyOf(lengths, lengths.length * 2);
+                prefixStarts = Arrays.copyOf(prefixStarts, prefixStarts.length * 2);
+            }
+            if (prefixesLength + prefix.length > prefixes.length) {
+                prefixes = Arrays.copyOf(prefixes, Math.max(prefixes.length * 2, prefixesLength + prefix.length));
+            }
+            offsets[nbParts] = offset;
+            lengths[nbParts] = length;
+            prefixStarts[nbParts] = prefixesLength;
+            System.arraycopy(prefix, 0, prefixes, prefixesLength, prefix.length);
+            prefixesLength += prefix.length;
+            nbParts++;
+        }
+
+        ArchiveIndex build()
+        {
+            nameStarts[nbFiles] = namesLength;
+            partStarts[nbFiles] = nbParts;
+            prefixStarts[nbParts] = prefixesLength;
+
+            // Sort files by name, keeping only the last one of duplicated names.
+            List<Integer> order = new ArrayList<>(nbFiles);
+            for (int id = 0; id < nbFiles; id++) {
+                order.add(id);
+            }
+            order.sort((id1, id2) -> {
+                int cmp = Arrays.compareUnsigned(names, nameStarts[id1], nameStarts[id1 + 1],
+                                                 names, nameStarts[id2], nameStarts[id2 + 1]);
+                return cmp != 0 ? cmp : Integer.compare(id1, id2);
+            });
+
+            int[] sortedNameStarts = new int[nbFiles + 1];
+            int[] sortedPartStarts = new int[nbFiles + 1];
+            byte[] sortedNames = new byte[namesLength];
+            long[] sortedOffsets = new long[nbParts];
+            long[] sortedLengths = new long[nbParts];
+            int[] sortedPrefixStarts = new int[nbParts + 1];
+            byte[] sortedPrefixes = new byte[prefixesLength];
+            int nbSorted = 0, nameLength = 0, partLength = 0, prefixLength = 0;
+
+            for (int i = 0; i < order.size(); i++) {
+                int id = order.get(i);
+                if (i + 1 < order.size()) {
+                    int nextId = order.get(i + 1);
+                    if (Arrays.equals(names, nameStarts[id], nameStarts[id + 1],
+                                      names, nameStarts[nextId], nameStarts[nextId + 1])) {
+                        continue;
+                    }
+                }
+
+                int nameStart = nameStarts[id];
+                int nameEnd = nameStarts[id + 1];
+                sortedNameStarts[nbSorted] = nameLength;
+                System.arraycopy(names, nameStart, sortedNames, nameLength, nameEnd - nameStart);
+                nameLength += nameEnd - nameStart;
+
+                sortedPartStarts[nbSorted] = partLength;
+                for (int part = partStarts[id]; part < partStarts[id + 1]; part++) {
+                    sortedOffsets[partLength] = offsets[part];
+                    sortedLengths[partLength] = lengths[part];
+                    sortedPrefixStarts[partLength] = prefixLength;
+                    int prefixStart = prefixStarts[part];
+                    int prefixEnd = prefixStarts[part + 1];
+                    System.arraycopy(prefixes, prefixStart, sortedPrefixes, prefixLength, prefixEnd - prefixStart);
+                    prefixLength += prefixEnd - prefixStart;
+                    partLength++;
+                }
+                nbSorted++;
+            }
+            sortedNameStarts[nbSorted] = nameLength;
+            sortedPartStarts[nbSorted] = partLength;
+            sortedPrefixStarts[partLength] = prefixLength;
+
+            return new ArchiveIndex(nbSorted,
+                                    Arrays.copyOf(sortedNames, nameLength),
+                                    Arrays.copyOf(sortedNameStarts, nbSorted + 1),
+                                    Arrays.copyOf(sortedPartStarts, nbSorted + 1),
+                                    Arrays.copyOf(sortedOffsets, partLength),
+                                    Arrays.copyOf(sortedLengths, partLength),
+                                    Arrays.copyOf(sortedPrefixes, prefixLength),
+                                    Arrays.copyOf(sortedPrefixStarts, partLength + 1));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package nigloo.tool.rpa;
+
+import java.nio.file.Path;
+
+/**
+ * Listener of the I/O of Ren'Py archives, to collect metrics on them. {@link ArchiveStatistics} collects counters and
+ * latency histograms, other implementations can forward them to a metrics library.
+ * <p>
+ * Methods are called synchronously by the archives, possibly from several threads at once: they must be thread-safe
+ * and fast. All methods do nothing by default.
+ *
+ * @see RenPyArchive#setMetrics(ArchiveMetrics)
+ * @see RenPyArchive#setDefaultMetrics(ArchiveMetrics)
+ */
+public interface ArchiveMetrics
+{
+    enum Operation
+    {
+        /**
+         * Opening of an archive, index included. Bytes: the archive size.
+         */
+        LOAD,
+        /**
+         * Decoding of the index of an archive, when it is not read from the index cache. Bytes: the compressed index size.
+         */
+        INDEX_DECODE,
+        /**
+         * Read of a file of an archive as a whole, by {@link RenPyArchive#read} or {@link RenPyArchive#slice}. Bytes: the
+         * file size.
+         */
+        READ,
+        /**
+         * Extraction of a file of an archive. Bytes: the file size.
+         */
+        EXTRACT,
+        /**
+         * Save of an archive, appended or not. Bytes: the number of bytes written.
+         */
+        SAVE
+    }
+
+    enum Cache
+    {
+        /**
+         * The {@link ContentCache} of the archive.
+         */
+        CONTENT,
+        /**
+         * The index cache directory of the archive.
+         */
+        INDEX
+    }
+
+    /**
+     * Listener ignoring everything.
+     */
+    ArchiveMetrics NONE = new ArchiveMetrics() {};
+
+    /**
+     * Called when an operation completes successfully.
+     *
+     * @param archive  the archive file
+     * @param duration the duration of the operation, in nanoseconds
+     */
+    default void operationCompleted(Path archive, Operation operation, long bytes, long duration) {}
+
+    /**
+     * Called for each positional read or transfer from an archive file. Reads from a memory-mapped archive are not
+     * reported, as they are not I/O calls.
+     */
+    default void positionalRead(Path archive, long bytes) {}
+
+    /**
+     * Called for each lookup in a cache.
+     */
+    default void cacheAccess(Path archive, Cache cache, boolean hit) {}
+}
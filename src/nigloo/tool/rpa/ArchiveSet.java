@@ -0,0 +1,223 @@
+package nigloo.tool.rpa;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Overlay of several Ren'Py archives, resolving each file name against them in order, the first archive containing a
+ * file hiding it in the following ones.
+ * <p>
+ * The archives are indexed once, in a single hash table mapping each file name to the archive it is read from, so
+ * resolving a name does not depend on the number of archives. The archives must not be modified while in the set,
+ * or {@link #refresh()} must be called afterward.
+ */
+public class ArchiveSet implements Closeable
+{
+    private final List<RenPyArchive> archives;
+    private final boolean ownArchives;
+
+    // File name in archive -> archive containing it
+    private Map<String, RenPyArchive> index;
+
+    /**
+     * Overlay of the given archives, by decreasing priority. The archives are not closed with the set.
+     */
+    public ArchiveSet(List<RenPyArchive> archives)
+    {
+        this(archives, false);
+    }
+
+    private ArchiveSet(List<RenPyArchive> archives, boolean ownArchives)
+    {
+        this.archives = List.copyOf(archives);
+        this.ownArchives = ownArchives;
+        this.index = buildIndex();
+    }
+
+    /**
+     * Open the archives of a game directory, in the order Ren'Py searches them: the ".rpa" files of the directory,
+     * by reverse name order. The archives are closed with the set.
+     *
+     * @param indexCache directory of the archives index cache, or null not to use a cache
+     */
+    public static ArchiveSet open(Path gameDir, boolean memoryMapped, Path indexCache) throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(gameDir, "*.rpa")) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(Comparator.comparing((Path file) -> file.getFileName().toString()).reversed());
+
+        List<RenPyArchive> archives = new ArrayList<>(files.size());
+        try {
+            for (Path file : files) {
+                archives.add(new RenPyArchive(file, null, null, null, false, memoryMapped, indexCache));
+            }
+            return new ArchiveSet(archives, true);
+        }
+        catch (IOException | RuntimeException e) {
+            for (RenPyArchive archive : archives) {
+                try {
+                    archive.close();
+                }
+                catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Rebuild the index of the set, after one of its archives has been modified.
+     */
+    public void refresh()
+    {
+        index = buildIndex();
+    }
+
+    private Map<String, RenPyArchive> buildIndex()
+    {
+        Map<String, RenPyArchive> index = new HashMap<>();
+        for (RenPyArchive archive : archives) {
+            for (Path filename : archive.list()) {
+                index.putIfAbsent(RenPyArchive.convertFilename(filename), archive);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Archives of the set, by decreasing priority.
+     */
+    public List<RenPyArchive> getArchives()
+    {
+        return archives;
+    }
+
+    /**
+     * Set the content cache of all the archives of the set, so that they share its size limit.
+     *
+     * @see RenPyArchive#setContentCache(ContentCache)
+     */
+    public void setContentCache(ContentCache contentCache)
+    {
+        for (RenPyArchive archive : archives) {
+            archive.setContentCache(contentCache);
+        }
+    }
+
+    /**
+     * Set the metrics listener of all the archives of the set.
+     *
+     * @see RenPyArchive#setMetrics(ArchiveMetrics)
+     */
+    public void setMetrics(ArchiveMetrics metrics)
+    {
+        for (RenPyArchive archive : archives) {
+            archive.setMetrics(metrics);
+        }
+    }
+
+    /**
+     * List the files visible through the set, each one once.
+     */
+    public List<Path> list()
+    {
+        List<Path> list = new ArrayList<>(index.size());
+        for (String name : index.keySet()) {
+            list.add(Path.of(name));
+        }
+        return list;
+    }
+
+    public boolean hasFile(Path filename)
+    {
+        return index.containsKey(RenPyArchive.convertFilename(filename));
+    }
+
+    /**
+     * Archive a file is read from.
+     *
+     * @return the archive, or null if no archive of the set contains the file
+     */
+    public RenPyArchive getArchive(Path filename)
+    {
+        return index.get(RenPyArchive.convertFilename(filename));
+    }
+
+    private RenPyArchive archiveOf(Path filename)
+    {
+        RenPyArchive archive = getArchive(filename);
+        if (archive == null) {
+            throw new NoSuchElementException("The requested file "+filename+" does not exist in the given Ren'Py archives");
+        }
+        return archive;
+    }
+
+    public long size(Path filename) throws IOException
+    {
+        return archiveOf(filename).size(filename);
+    }
+
+    public byte[] read(Path filename) throws IOException
+    {
+        return archiveOf(filename).read(filename);
+    }
+
+    public ByteBuffer slice(Path filename) throws IOException
+    {
+        return archiveOf(filename).slice(filename);
+    }
+
+    public InputStream openStream(Path filename) throws IOException
+    {
+        return archiveOf(filename).openStream(filename);
+    }
+
+    public SeekableByteChannel openChannel(Path filename) throws IOException
+    {
+        return archiveOf(filename).openChannel(filename);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (!ownArchives) {
+            return;
+        }
+        IOException error = null;
+        for (RenPyArchive archive : archives) {
+            try {
+                archive.close();
+            }
+            catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+                else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
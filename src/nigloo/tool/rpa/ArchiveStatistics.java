@@ -0,0 +1,127 @@
+package nigloo.tool.rpa;
+
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics listener aggregating the I/O of all the archives it is set on: number of bytes and positional reads, cache
+ * hits and misses, and for each operation its number of bytes and a histogram of its latency.
+ */
+public class ArchiveStatistics implements ArchiveMetrics
+{
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder positionalReads = new LongAdder();
+    private final Map<Cache, LongAdder> hits = new EnumMap<>(Cache.class);
+    private final Map<Cache, LongAdder> misses = new EnumMap<>(Cache.class);
+    private final Map<Operation, LongAdder> bytes = new EnumMap<>(Operation.class);
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+
+    public ArchiveStatistics()
+    {
+        for (Cache cache : Cache.values()) {
+            hits.put(cache, new LongAdder());
+            misses.put(cache, new LongAdder());
+        }
+        for (Operation operation : Operation.values()) {
+            bytes.put(operation, new LongAdder());
+            latencies.put(operation, new LatencyHistogram());
+        }
+    }
+
+    @Override
+    public void operationCompleted(Path archive, Operation operation, long bytes, long duration)
+    {
+        this.bytes.get(operation).add(bytes);
+        latencies.get(operation).record(duration);
+    }
+
+    @Override
+    public void positionalRead(Path archive, long bytes)
+    {
+        bytesRead.add(bytes);
+        positionalReads.increment();
+    }
+
+    @Override
+    public void cacheAccess(Path archive, Cache cache, boolean hit)
+    {
+        (hit ? hits : misses).get(cache).increment();
+    }
+
+    /**
+     * Number of bytes read from archive files, memory-mapped archives excluded.
+     */
+    public long getBytesRead()
+    {
+        return bytesRead.sum();
+    }
+
+    /**
+     * Number of positional reads and transfers from archive files, memory-mapped archives excluded.
+     */
+    public long getPositionalReads()
+    {
+        return positionalReads.sum();
+    }
+
+    public long getHits(Cache cache)
+    {
+        return hits.get(cache).sum();
+    }
+
+    public long getMisses(Cache cache)
+    {
+        return misses.get(cache).sum();
+    }
+
+    /**
+     * Number of bytes of the completed operations of the given type, see {@link Operation} for what is counted.
+     */
+    public long getBytes(Operation operation)
+    {
+        return bytes.get(operation).sum();
+    }
+
+    /**
+     * Latency of the completed operations of the given type. The histogram is live, not a copy.
+     */
+    public LatencyHistogram getLatency(Operation operation)
+    {
+        return latencies.get(operation);
+    }
+
+    /**
+     * Reset all the statistics.
+     */
+    public void reset()
+    {
+        bytesRead.reset();
+        positionalReads.reset();
+        for (Cache cache : Cache.values()) {
+            hits.get(cache).reset();
+            misses.get(cache).reset();
+        }
+        for (Operation operation : Operation.values()) {
+            bytes.get(operation).reset();
+            latencies.get(operation).reset();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("read: ").append(getBytesRead()).append(" bytes in ").append(getPositionalReads()).append(" positional reads\n");
+        for (Cache cache : Cache.values()) {
+            sb.append(cache).append(" cache: ").append(getHits(cache)).append(" hits, ")
+              .append(getMisses(cache)).append(" misses\n");
+        }
+        for (Operation operation : Operation.values()) {
+            sb.append(operation).append(": ").append(getBytes(operation)).append(" bytes, ")
+              .append(getLatency(operation)).append('\n');
+        }
+        return sb.toString();
+    }
+}
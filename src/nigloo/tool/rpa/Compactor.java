@@ -0,0 +1,337 @@
+package nigloo.tool.rpa;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * In-place compaction of an archive file: the live data is moved down over the dead ranges, the new index is written
+ * after it, then the header is updated and the file truncated.
+ * <p>
+ * Moving data in place overwrites the data the current index points to, so the compaction is made restartable with a
+ * journal file next to the archive. The journal is written before anything is moved, and is installed atomically:
+ * <pre>
+ * magic
+ * long index offset, int header length, byte[] header, int index length, byte[] index
+ * int nbExtents, long[nbExtents] sources, long[nbExtents] targets, long[nbExtents] lengths
+ * 2 chunk slots: long sequence, int nbPieces, int data length, int crc,
+ *                long[MAX_PIECES * 3] piece sources, targets and lengths, byte[CHUNK_SIZE] data
+ * </pre>
+ * Extents are moved in chunks of at most {@link #CHUNK_SIZE} bytes, each chunk gathering the pieces of consecutive
+ * extents. Each chunk is first copied to a slot of the journal, alternately, and the archive is flushed before a slot
+ * is reused. An interrupted compaction is resumed by writing the last valid chunk again from its copy, then moving the
+ * following ones: since data only moves down, the data that was not moved yet is intact.
+ */
+final class Compactor
+{
+    private static final long MAGIC = 0x525041434d500001L; // "RPACMP" + format version
+
+    static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_PIECES = 8192;
+    private static final int SLOT_HEADER_SIZE = Long.BYTES + 3 * Integer.BYTES;
+    private static final int PIECE_SIZE = 3 * Long.BYTES;
+    private static final int DATA_OFFSET = SLOT_HEADER_SIZE + MAX_PIECES * PIECE_SIZE;
+    private static final int SLOT_SIZE = DATA_OFFSET + CHUNK_SIZE;
+
+    private final Path archiveFile;
+    private final long indexOffset;
+    private final byte[] header;
+    private final byte[] index;
+    // Ranges of live data, sorted by source, and where they move.
+    private final long[] sources;
+    private final long[] targets;
+    private final long[] lengths;
+
+    /**
+     * @param indexOffset the offset of the new index, the end of the moved data
+     * @param header      the new header, pointing to the new index
+     * @param index       the new index
+     */
+    Compactor(Path archiveFile, long indexOffset, byte[] header, byte[] index, long[] sources, long[] targets, long[] lengths)
+    {
+        this.archiveFile = archiveFile;
+        this.indexOffset = indexOffset;
+        this.header = header;
+        this.index = index;
+        this.sources = sources;
+        this.targets = targets;
+        this.lengths = lengths;
+    }
+
+    static Path journalFile(Path archiveFile)
+    {
+        archiveFile = archiveFile.toAbsolutePath();
+        return archiveFile.resolveSibling(archiveFile.getFileName() + ".compact");
+    }
+
+    /**
+     * Compact the archive, from the start.
+     */
+    void run() throws IOException
+    {
+        writeJournal();
+        execute(0, 0);
+    }
+
+    /**
+     * Finish an interrupted compaction of an archive, if its journal exists.
+     *
+     * @return true if a compaction was resumed
+     */
+    static boolean resume(Path archiveFile) throws IOException
+    {
+        Path journalFile = journalFile(archiveFile);
+        if (!Files.exists(journalFile)) {
+            return false;
+        }
+
+        Compactor compactor;
+        long planSize;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile), 1 << 16))) {
+            if (in.readLong() != MAGIC) {
+                throw new IOException("Invalid compaction journal "+journalFile);
+            }
+            long indexOffset = in.readLong();
+            byte[] header = in.readNBytes(in.readInt());
+            byte[] index = in.readNBytes(in.readInt());
+            int nbExtents = in.readInt();
+            long[] sources = readLongs(in, nbExtents);
+            long[] targets = readLongs(in, nbExtents);
+            long[] lengths = readLongs(in, nbExtents);
+            compactor = new Compactor(archiveFile, indexOffset, header, index, sources, targets, lengths);
+            planSize = compactor.planSize();
+        }
+
+        // Find the last chunk copied to the journal, and write it again.
+        long sequence = 0;
+        long position = 0;
+        try (FileChannel journal = FileChannel.open(journalFile, StandardOpenOption.READ);
+             FileChannel archive = FileChannel.open(archiveFile, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            ByteBuffer last = null;
+            for (int slot = 0; slot < 2; slot++) {
+                ByteBuffer chunk = readSlot(journal, planSize + slot * (long) SLOT_SIZE);
+                if (chunk != null && (last == null || chunk.getLong(0) > last.getLong(0))) {
+                    last = chunk;
+                }
+            }
+            if (last != null) {
+                position = writePieces(archive, last, last.getInt(Long.BYTES));
+                archive.force(false);
+                sequence = last.getLong(0) + 1;
+            }
+        }
+
+        compactor.execute(sequence, position);
+        return true;
+    }
+
+    private long planSize()
+    {
+        return Long.BYTES + Long.BYTES + Integer.BYTES + header.length + Integer.BYTES + index.length
+               + Integer.BYTES + 3L * Long.BYTES * sources.length;
+    }
+
+    private void writeJournal() throws IOException
+    {
+        Path journalFile = journalFile(archiveFile);
+        Path temp = Files.createTempFile(journalFile.getParent(), journalFile.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                out.writeLong(MAGIC);
+                out.writeLong(indexOffset);
+                out.writeInt(header.length);
+                out.write(header);
+                out.writeInt(index.length);
+                out.write(index);
+                out.writeInt(sources.length);
+                writeLongs(out, sources);
+                writeLongs(out, targets);
+                writeLongs(out, lengths);
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        forceDirectory(journalFile.getParent());
+    }
+
+    /**
+     * Move the chunks starting at the given source position, then write the index and header, and truncate the
+     * archive.
+     *
+     * @param sequence the sequence number of the next chunk
+     * @param position the source position of the next chunk to move
+     */
+    private void execute(long sequence, long position) throws IOException
+    {
+        Path journalFile = journalFile(archiveFile);
+        long planSize = planSize();
+        try (FileChannel journal = FileChannel.open(journalFile, StandardOpenOption.WRITE);
+             FileChannel archive = FileChannel.open(archiveFile, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+            int nbPieces = 0;
+            int dataLength = 0;
+            for (int i = 0; i < sources.length; i++) {
+                long shift = sources[i] - targets[i];
+                if (shift == 0) {
+                    continue;
+                }
+                long end = sources[i] + lengths[i];
+                long source = Math.max(sources[i], position);
+                while (source < end) {
+                    int length = (int) Math.min(end - source, CHUNK_SIZE - dataLength);
+                    if (RenPyArchive.readFully(archive, slot.slice(DATA_OFFSET + dataLength, length), source) < length) {
+                        throw new IOException("Unexpected end of archive at "+source+" while compacting");
+                    }
+                    slot.putLong(SLOT_HEADER_SIZE + nbPieces * PIECE_SIZE, source)
+                        .putLong(SLOT_HEADER_SIZE + nbPieces * PIECE_SIZE + Long.BYTES, source - shift)
+                        .putLong(SLOT_HEADER_SIZE + nbPieces * PIECE_SIZE + 2 * Long.BYTES, length);
+                    nbPieces++;
+                    dataLength += length;
+                    source += length;
+
+                    if (dataLength == CHUNK_SIZE || nbPieces == MAX_PIECES) {
+                        moveChunk(journal, planSize, archive, slot, sequence++, nbPieces, dataLength);
+                        nbPieces = 0;
+                        dataLength = 0;
+                    }
+                }
+            }
+            if (nbPieces > 0) {
+                moveChunk(journal, planSize, archive, slot, sequence, nbPieces, dataLength);
+            }
+
+            writeFully(archive, ByteBuffer.wrap(index), indexOffset);
+            archive.force(false);
+            writeFully(archive, ByteBuffer.wrap(header), 0);
+            archive.truncate(indexOffset + index.length);
+            archive.force(true);
+        }
+        Files.delete(journalFile);
+    }
+
+    /**
+     * Copy a chunk to its slot in the journal, then move its pieces in the archive.
+     */
+    private static void moveChunk(FileChannel journal, long planSize, FileChannel archive, ByteBuffer slot,
+                                  long sequence, int nbPieces, int dataLength) throws IOException
+    {
+        // The slot about to be reused holds the chunk before the previous one, which must be on disk.
+        archive.force(false);
+
+        slot.putLong(0, sequence).putInt(Long.BYTES, nbPieces).putInt(Long.BYTES + Integer.BYTES, dataLength);
+        slot.putInt(Long.BYTES + 2 * Integer.BYTES, checksum(slot, nbPieces, dataLength));
+        long position = planSize + (sequence % 2) * SLOT_SIZE;
+        writeFully(journal, slot.slice(0, SLOT_HEADER_SIZE + nbPieces * PIECE_SIZE), position);
+        writeFully(journal, slot.slice(DATA_OFFSET, dataLength), position + DATA_OFFSET);
+        journal.force(false);
+
+        writePieces(archive, slot, nbPieces);
+    }
+
+    /**
+     * Write the pieces of a chunk to their target.
+     *
+     * @return the source position following the last piece
+     */
+    private static long writePieces(FileChannel archive, ByteBuffer slot, int nbPieces) throws IOException
+    {
+        int dataPosition = DATA_OFFSET;
+        long end = 0;
+        for (int i = 0; i < nbPieces; i++) {
+            long source = slot.getLong(SLOT_HEADER_SIZE + i * PIECE_SIZE);
+            long target = slot.getLong(SLOT_HEADER_SIZE + i * PIECE_SIZE + Long.BYTES);
+            int length = (int) slot.getLong(SLOT_HEADER_SIZE + i * PIECE_SIZE + 2 * Long.BYTES);
+            writeFully(archive, slot.slice(dataPosition, length), target);
+            dataPosition += length;
+            end = source + length;
+        }
+        return end;
+    }
+
+    private static int checksum(ByteBuffer slot, int nbPieces, int dataLength)
+    {
+        CRC32C crc = new CRC32C();
+        crc.update(slot.array(), 0, Long.BYTES + 2 * Integer.BYTES);
+        crc.update(slot.array(), SLOT_HEADER_SIZE, nbPieces * PIECE_SIZE);
+        crc.update(slot.array(), DATA_OFFSET, dataLength);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Read a chunk slot of the journal.
+     *
+     * @return the slot, or null if it is empty or was not entirely written
+     */
+    private static ByteBuffer readSlot(FileChannel journal, long position) throws IOException
+    {
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        if (RenPyArchive.readFully(journal, slot.slice(0, SLOT_HEADER_SIZE), position) < SLOT_HEADER_SIZE) {
+            return null;
+        }
+        int nbPieces = slot.getInt(Long.BYTES);
+        int dataLength = slot.getInt(Long.BYTES + Integer.BYTES);
+        if (nbPieces <= 0 || nbPieces > MAX_PIECES || dataLength <= 0 || dataLength > CHUNK_SIZE) {
+            return null;
+        }
+        int piecesLength = nbPieces * PIECE_SIZE;
+        if (RenPyArchive.readFully(journal, slot.slice(SLOT_HEADER_SIZE, piecesLength), position + SLOT_HEADER_SIZE) < piecesLength
+            || RenPyArchive.readFully(journal, slot.slice(DATA_OFFSET, dataLength), position + DATA_OFFSET) < dataLength
+            || checksum(slot, nbPieces, dataLength) != slot.getInt(Long.BYTES + 2 * Integer.BYTES)) {
+            return null;
+        }
+        return slot;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException
+    {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    /**
+     * Flush a directory entry, so that a file moved into it survives a crash. Not supported on every platform.
+     */
+    private static void forceDirectory(Path directory)
+    {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            // Best effort.
+        }
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] longs) throws IOException
+    {
+        for (long l : longs) {
+            out.writeLong(l);
+        }
+    }
+
+    private static long[] readLongs(DataInputStream in, int count) throws IOException
+    {
+        long[] longs = new long[count];
+        for (int i = 0; i < count; i++) {
+            longs[i] = in.readLong();
+        }
+        return longs;
+    }
+}
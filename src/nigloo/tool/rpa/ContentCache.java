@@ -0,0 +1,157 @@
+package nigloo.tool.rpa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of file contents read from archives, bounded by the total size of the cached contents and evicting the least
+ * recently used files first.
+ * <p>
+ * Contents are kept as read-only buffers and handed out as independent views of them, so a cache hit costs no copy
+ * and the same content can be used from several threads at once. A cache can be shared by several archives, see
+ * {@link RenPyArchive#setContentCache(ContentCache)}.
+ */
+public class ContentCache
+{
+    private record Key(RenPyArchive archive, Path filename) {}
+
+    public record Stats(long hits, long misses, long evictions, int entries, long size) {}
+
+    interface Loader
+    {
+        ByteBuffer load() throws IOException;
+    }
+
+    private final long maxSize;
+    private final LinkedHashMap<Key, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+    // Incremented on invalidation, so that a content loaded before is not cached afterward.
+    private long generation = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxSize maximum total size of the cached contents, in bytes. Files larger than this are never cached.
+     */
+    public ContentCache(long maxSize)
+    {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize cannot be negative: "+maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public synchronized Stats getStats()
+    {
+        return new Stats(hits, misses, evictions, entries.size(), size);
+    }
+
+    /**
+     * Remove all contents from the cache. Counters are not reset.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        size = 0;
+        generation++;
+    }
+
+    /**
+     * Get a cached content, or load and cache it. The content is loaded without holding the cache lock.
+     */
+    ByteBuffer get(RenPyArchive archive, Path filename, Loader loader) throws IOException
+    {
+        Key key = new Key(archive, filename);
+        long loadGeneration;
+        synchronized (this) {
+            ByteBuffer cached = entries.get(key);
+            if (cached != null) {
+                hits++;
+                return cached.duplicate();
+            }
+            misses++;
+            loadGeneration = generation;
+        }
+
+        ByteBuffer content = loader.load().asReadOnlyBuffer();
+        if (content.remaining() <= maxSize) {
+            synchronized (this) {
+                if (generation == loadGeneration) {
+                    put(key, content);
+                }
+            }
+        }
+        return content.duplicate();
+    }
+
+    /**
+     * Get a cached content without loading it.
+     *
+     * @return the content, or null if it is not cached
+     */
+    synchronized ByteBuffer getIfPresent(RenPyArchive archive, Path filename)
+    {
+        ByteBuffer cached = entries.get(new Key(archive, filename));
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return cached.duplicate();
+    }
+
+    private void put(Key key, ByteBuffer content)
+    {
+        ByteBuffer previous = entries.put(key, content);
+        if (previous != null) {
+            size -= previous.remaining();
+        }
+        size += content.remaining();
+
+        Iterator<ByteBuffer> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().remaining();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Remove a file of an archive from the cache.
+     */
+    synchronized void invalidate(RenPyArchive archive, Path filename)
+    {
+        ByteBuffer previous = entries.remove(new Key(archive, filename));
+        if (previous != null) {
+            size -= previous.remaining();
+        }
+        generation++;
+    }
+
+    /**
+     * Remove all files of an archive from the cache.
+     */
+    synchronized void invalidateAll(RenPyArchive archive)
+    {
+        Iterator<Map.Entry<Key, ByteBuffer>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, ByteBuffer> entry = it.next();
+            if (entry.getKey().archive == archive) {
+                size -= entry.getValue().remaining();
+                it.remove();
+            }
+        }
+        generation++;
+    }
+}
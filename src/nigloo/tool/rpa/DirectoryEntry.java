@@ -0,0 +1,15 @@
+package nigloo.tool.rpa;
+
+import java.nio.file.Path;
+
+/**
+ * Child of a directory of an archive, see {@link RenPyArchive#listDirectory(Path)}.
+ *
+ * @param path      the path of the child in the archive
+ * @param directory true if the child is a directory
+ * @param nbFiles   the number of files in the child, recursively: 1 for a file
+ * @param size      the size of the file, or the total size of the files in the directory, recursively
+ */
+public record DirectoryEntry(Path path, boolean directory, int nbFiles, long size)
+{
+}
@@ -0,0 +1,168 @@
+package nigloo.tool.rpa;
+
+import nigloo.tool.rpa.RenPyArchive.IndexEntry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Read-only channel over an archive entry: for each part of the entry, the prefix bytes followed by a bounded range
+ * of the archive file. The archive file is read with positional reads only, so several entry channels can share the
+ * same file channel.
+ */
+class EntryChannel implements SeekableByteChannel
+{
+    private final FileChannel channel;
+    // Notified of the number of bytes of each read of the file channel.
+    private final LongConsumer onRead;
+    // Per part
+    private final byte[][] prefixes;
+    private final long[] dataOffsets;
+    private final long[] starts;
+    private final long size;
+
+    private long position = 0;
+    private int part = 0;
+    private boolean open = true;
+
+    EntryChannel(FileChannel channel, List<IndexEntry> parts, LongConsumer onRead)
+    {
+        this.channel = channel;
+        this.onRead = onRead;
+        this.prefixes = new byte[parts.size()][];
+        this.dataOffsets = new long[parts.size()];
+        // Start of each part in the entry, the last element being the entry size.
+        this.starts = new long[parts.size() + 1];
+        for (int i = 0; i < parts.size(); i++) {
+            IndexEntry part = parts.get(i);
+            prefixes[i] = part.prefix();
+            dataOffsets[i] = part.offset();
+            starts[i + 1] = starts[i] + Math.max(part.length(), part.prefix().length);
+        }
+        this.size = starts[parts.size()];
+    }
+
+    /**
+     * Channel over in-memory content.
+     */
+    EntryChannel(byte[] content)
+    {
+        this(null, List.of(new IndexEntry(0, content.length, content)), bytes -> {});
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+
+        // Parts are usually read in order, start from the last one read.
+        if (position < starts[part]) {
+            part = 0;
+        }
+        while (position >= starts[part + 1]) {
+            part++;
+        }
+
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            long partPosition = position - starts[part];
+            byte[] prefix = prefixes[part];
+            if (partPosition < prefix.length) {
+                int n = (int) Math.min(dst.remaining(), prefix.length - partPosition);
+                dst.put(prefix, (int) partPosition, n);
+                position += n;
+                total += n;
+            }
+            else {
+                long remaining = starts[part + 1] - position;
+                ByteBuffer target = dst.remaining() > remaining ? dst.slice(dst.position(), (int) remaining) : dst;
+                int n = channel.read(target, dataOffsets[part] + partPosition - prefix.length);
+                onRead.accept(Math.max(n, 0));
+                if (n < 0) {
+                    // Truncated archive.
+                    return total == 0 ? -1 : total;
+                }
+                if (target != dst) {
+                    dst.position(dst.position() + n);
+                }
+                position += n;
+                total += n;
+                if (n < remaining) {
+                    // Short read, let the caller read again.
+                    break;
+                }
+            }
+            if (position == starts[part + 1] && position < size) {
+                part++;
+            }
+        }
+
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException
+    {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException
+    {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: "+newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException
+    {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public void close()
+    {
+        // The archive file channel is shared, it is closed with the archive.
+        open = false;
+    }
+
+    private void ensureOpen() throws ClosedChannelException
+    {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
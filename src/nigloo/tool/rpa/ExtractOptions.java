@@ -0,0 +1,93 @@
+package nigloo.tool.rpa;
+
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Options of {@link RenPyArchive#extractAll(Path, ExtractOptions)}.
+ */
+public class ExtractOptions
+{
+    private Executor executor = null;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private Predicate<Path> filter = filename -> true;
+    private boolean overwrite = true;
+    private Consumer<ExtractResult> progress = result -> {};
+
+    /**
+     * Executor running the extraction workers. If not set, a pool of {@link #getParallelism()} platform threads is
+     * created for the extraction and shut down afterward.
+     */
+    public ExtractOptions executor(Executor executor)
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Number of files extracted at the same time.
+     */
+    public ExtractOptions parallelism(int parallelism)
+    {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: "+parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Only the files matching this filter are extracted.
+     */
+    public ExtractOptions filter(Predicate<Path> filter)
+    {
+        this.filter = Objects.requireNonNull(filter, "filter cannot be null");
+        return this;
+    }
+
+    /**
+     * If false, extracting a file that already exists in the output directory fails.
+     */
+    public ExtractOptions overwrite(boolean overwrite)
+    {
+        this.overwrite = overwrite;
+        return this;
+    }
+
+    /**
+     * Called with the result of each file once it is extracted, from the extraction workers.
+     */
+    public ExtractOptions progress(Consumer<ExtractResult> progress)
+    {
+        this.progress = Objects.requireNonNull(progress, "progress cannot be null");
+        return this;
+    }
+
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    public Predicate<Path> getFilter()
+    {
+        return filter;
+    }
+
+    public boolean isOverwrite()
+    {
+        return overwrite;
+    }
+
+    public Consumer<ExtractResult> getProgress()
+    {
+        return progress;
+    }
+}
@@ -0,0 +1,19 @@
+package nigloo.tool.rpa;
+
+import java.nio.file.Path;
+
+/**
+ * Result of the extraction of a single file.
+ *
+ * @param filename the file in the archive
+ * @param target   the extracted file
+ * @param size     the number of bytes written, 0 if the extraction failed
+ * @param error    the error that made the extraction fail, or null on success
+ */
+public record ExtractResult(Path filename, Path target, long size, Throwable error)
+{
+    public boolean isSuccess()
+    {
+        return error == null;
+    }
+}
@@ -0,0 +1,121 @@
+package nigloo.tool.rpa;
+
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Conversion of glob patterns, as described in {@link java.nio.file.FileSystem#getPathMatcher(String)}, to regular
+ * expressions, for '/' separated paths.
+ */
+final class Globs
+{
+    private Globs()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    private static final String REGEX_META_CHARS = ".^$+{[]|()";
+    private static final String GLOB_META_CHARS = "\\*?[{";
+
+    static String toRegex(String glob)
+    {
+        StringBuilder regex = new StringBuilder("^");
+        boolean inGroup = false;
+
+        int i = 0;
+        while (i < glob.length()) {
+            char c = glob.charAt(i++);
+            switch (c) {
+                case '\\' -> {
+                    if (i == glob.length()) {
+                        throw new PatternSyntaxException("No character to escape", glob, i - 1);
+                    }
+                    char next = glob.charAt(i++);
+                    if (GLOB_META_CHARS.indexOf(next) >= 0 || REGEX_META_CHARS.indexOf(next) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(next);
+                }
+                case '/' -> regex.append(c);
+                case '[' -> {
+                    regex.append("[[^/]&&[");
+                    if (i < glob.length() && glob.charAt(i) == '^') {
+                        // Escape the regex negation char if it appears.
+                        regex.append("\\^");
+                        i++;
+                    }
+                    else {
+                        if (i < glob.length() && glob.charAt(i) == '!') {
+                            regex.append('^');
+                            i++;
+                        }
+                        // A hyphen at the start is a literal.
+                        if (i < glob.length() && glob.charAt(i) == '-') {
+                            regex.append('-');
+                            i++;
+                        }
+                    }
+                    boolean closed = false;
+                    while (i < glob.length()) {
+                        c = glob.charAt(i++);
+                        if (c == ']') {
+                            closed = true;
+                            break;
+                        }
+                        if (c == '/') {
+                            throw new PatternSyntaxException("Explicit 'name separator' in class", glob, i - 1);
+                        }
+                        if (c == '\\' || c == '[' || c == '&' && i < glob.length() && glob.charAt(i) == '&') {
+                            // Escape '\', '[' or "&&" for regex class.
+                            regex.append('\\');
+                        }
+                        regex.append(c);
+                    }
+                    if (!closed) {
+                        throw new PatternSyntaxException("Missing ']'", glob, i - 1);
+                    }
+                    regex.append("]]");
+                }
+                case '{' -> {
+                    if (inGroup) {
+                        throw new PatternSyntaxException("Cannot nest groups", glob, i - 1);
+                    }
+                    regex.append("(?:(?:");
+                    inGroup = true;
+                }
+                case '}' -> {
+                    if (inGroup) {
+                        regex.append("))");
+                        inGroup = false;
+                    }
+                    else {
+                        regex.append('}');
+                    }
+                }
+                case ',' -> regex.append(inGroup ? ")|(?:" : ",");
+                case '*' -> {
+                    if (i < glob.length() && glob.charAt(i) == '*') {
+                        // Crosses directory boundaries.
+                        regex.append(".*");
+                        i++;
+                    }
+                    else {
+                        regex.append("[^/]*");
+                    }
+                }
+                case '?' -> regex.append("[^/]");
+                default -> {
+                    if (REGEX_META_CHARS.indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+                }
+            }
+        }
+
+        if (inGroup) {
+            throw new PatternSyntaxException("Missing '}'", glob, i - 1);
+        }
+
+        return regex.append('$').toString();
+    }
+}
@@ -0,0 +1,183 @@
+package nigloo.tool.rpa;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * On-disk cache of archive indexes, so that reopening an unchanged archive does not need to inflate and unpickle its
+ * index again.
+ * <p>
+ * A cache file is valid for an archive as long as the archive path, size, last modified time and header are the same
+ * as when it was written. Its content is a sorted name table followed by primitive arrays, read through a memory
+ * mapping:
+ * <pre>
+ * magic, archive path, size, last modified time, header, obfuscation key
+ * int nbFiles, int nbParts
+ * int[nbFiles + 1] name starts, byte[] UTF-8 names (sorted)
+ * int[nbFiles + 1] part starts
+ * long[nbParts] offsets, long[nbParts] lengths
+ * int[nbParts + 1] prefix starts, byte[] prefixes
+ * </pre>
+ * which is the layout of {@link ArchiveIndex}, so the index is built from the cache without any conversion.
+ */
+final class IndexCache
+{
+    private IndexCache()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    private static final long MAGIC = 0x5250414944580001L; // "RPAIDX" + format version
+
+    record Key(String archive, long size, long lastModified, String header) {}
+
+    record Content(long key, ArchiveIndex index) {}
+
+    static Key keyOf(Path archive, String header) throws IOException
+    {
+        Path realPath = archive.toRealPath();
+        return new Key(realPath.toString(), Files.size(realPath), Files.getLastModifiedTime(realPath).toMillis(), header);
+    }
+
+    static Path cacheFile(Path cacheDir, Key key)
+    {
+        return cacheDir.resolve(UUID.nameUUIDFromBytes(key.archive.getBytes(StandardCharsets.UTF_8)) + ".rpaidx");
+    }
+
+    /**
+     * Read the cached indexes of an archive.
+     *
+     * @return the cached content, or null if there is no valid cache for this key
+     */
+    static Content read(Path cacheFile, Key key) throws IOException
+    {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+
+        if (buffer.remaining() < Long.BYTES || buffer.getLong() != MAGIC
+            || !getString(buffer).equals(key.archive)
+            || buffer.getLong() != key.size
+            || buffer.getLong() != key.lastModified
+            || !getString(buffer).equals(key.header)) {
+            return null;
+        }
+
+        long obfuscationKey = buffer.getLong();
+        int nbFiles = buffer.getInt();
+        int nbParts = buffer.getInt();
+
+        int[] nameStarts = getInts(buffer, nbFiles + 1);
+        byte[] names = getBytes(buffer, nameStarts[nbFiles]);
+        int[] partStarts = getInts(buffer, nbFiles + 1);
+        long[] offsets = getLongs(buffer, nbParts);
+        long[] lengths = getLongs(buffer, nbParts);
+        int[] prefixStarts = getInts(buffer, nbParts + 1);
+        byte[] prefixes = getBytes(buffer, prefixStarts[nbParts]);
+
+        return new Content(obfuscationKey, new ArchiveIndex(nbFiles, names, nameStarts, partStarts, offsets, lengths, prefixes, prefixStarts));
+    }
+
+    /**
+     * Write the indexes of an archive in the cache. The cache file is replaced atomically.
+     */
+    static void write(Path cacheFile, Key key, long obfuscationKey, ArchiveIndex index) throws IOException
+    {
+        index = index.compacted();
+        int nbFiles = index.nbFiles();
+        int nbParts = index.partStarts()[nbFiles];
+
+        Files.createDirectories(cacheFile.getParent());
+        Path temp = Files.createTempFile(cacheFile.getParent(), cacheFile.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16)))
+        {
+            out.writeLong(MAGIC);
+            putString(out, key.archive);
+            out.writeLong(key.size);
+            out.writeLong(key.lastModified);
+            putString(out, key.header);
+            out.writeLong(obfuscationKey);
+            out.writeInt(nbFiles);
+            out.writeInt(nbParts);
+
+            putInts(out, index.nameStarts());
+            out.write(index.names());
+            putInts(out, index.partStarts());
+            putLongs(out, index.offsets());
+            putLongs(out, index.lengths());
+            putInts(out, index.prefixStarts());
+            out.write(index.prefixes());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void putInts(DataOutputStream out, int[] ints) throws IOException
+    {
+        for (int i : ints) {
+            out.writeInt(i);
+        }
+    }
+
+    private static void putLongs(DataOutputStream out, long[] longs) throws IOException
+    {
+        for (long l : longs) {
+            out.writeLong(l);
+        }
+    }
+
+    private static void putString(DataOutputStream out, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer)
+    {
+        return new String(getBytes(buffer, buffer.getInt()), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer, int length)
+    {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static int[] getInts(ByteBuffer buffer, int length)
+    {
+        int[] ints = new int[length];
+        buffer.asIntBuffer().get(ints);
+        buffer.position(buffer.position() + length * Integer.BYTES);
+        return ints;
+    }
+
+    private static long[] getLongs(ByteBuffer buffer, int length)
+    {
+        long[] longs = new long[length];
+        buffer.asLongBuffer().get(longs);
+        buffer.position(buffer.position() + length * Long.BYTES);
+        return longs;
+    }
+}
@@ -0,0 +1,572 @@
+package nigloo.tool.rpa;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Streaming decoder of archive indexes.
+ * <p>
+ * An archive index is a pickled {@code dict[str, list[tuple[int, int, bytes]]]}. Instead of unpickling it as a
+ * generic object graph, this decoder only implements the opcodes used to pickle such a structure (protocols 0 to 5)
+ * and emits each part into the index builder, deobfuscated, as soon as it is appended to its list. Integers are never
+ * boxed and no list or tuple of the index is kept once emitted.
+ * <p>
+ * Anything outside of this subset makes the decoding fail with an {@link UnsupportedPickleException}, the caller is
+ * then expected to fall back to a generic unpickler.
+ */
+final class IndexDecoder
+{
+    static class UnsupportedPickleException extends IOException
+    {
+        private static final long serialVersionUID = -3318342466711405219L;
+
+        UnsupportedPickleException(String message)
+        {
+            super(message);
+        }
+
+        UnsupportedPickleException(String message, Throwable cause)
+        {
+            super(message, cause);
+        }
+    }
+
+    private static final int MARK = '(';
+    private static final int STOP = '.';
+    private static final int POP = '0';
+    private static final int POP_MARK = '1';
+    private static final int INT = 'I';
+    private static final int BININT = 'J';
+    private static final int BININT1 = 'K';
+    private static final int BININT2 = 'M';
+    private static final int LONG = 'L';
+    private static final int NONE = 'N';
+    private static final int BINSTRING = 'T';
+    private static final int SHORT_BINSTRING = 'U';
+    private static final int UNICODE = 'V';
+    private static final int BINUNICODE = 'X';
+    private static final int APPEND = 'a';
+    private static final int GLOBAL = 'c';
+    private static final int DICT = 'd';
+    private static final int EMPTY_DICT = '}';
+    private static final int APPENDS = 'e';
+    private static final int GET = 'g';
+    private static final int BINGET = 'h';
+    private static final int LONG_BINGET = 'j';
+    private static final int LIST = 'l';
+    private static final int EMPTY_LIST = ']';
+    private static final int PUT = 'p';
+    private static final int BINPUT = 'q';
+    private static final int LONG_BINPUT = 'r';
+    private static final int SETITEM = 's';
+    private static final int TUPLE = 't';
+    private static final int EMPTY_TUPLE = ')';
+    private static final int SETITEMS = 'u';
+    private static final int REDUCE = 'R';
+    private static final int PROTO = 0x80;
+    private static final int TUPLE1 = 0x85;
+    private static final int TUPLE2 = 0x86;
+    private static final int TUPLE3 = 0x87;
+    private static final int NEWTRUE = 0x88;
+    private static final int NEWFALSE = 0x89;
+    private static final int LONG1 = 0x8a;
+    private static final int LONG4 = 0x8b;
+    private static final int SHORT_BINBYTES = 'C';
+    private static final int BINBYTES = 'B';
+    private static final int SHORT_BINUNICODE = 0x8c;
+    private static final int BINUNICODE8 = 0x8d;
+    private static final int BINBYTES8 = 0x8e;
+    private static final int STACK_GLOBAL = 0x93;
+    private static final int MEMOIZE = 0x94;
+    private static final int FRAME = 0x95;
+    private static final int BYTEARRAY8 = 0x96;
+
+    // Stack markers. An INT_VALUE slot holds its value in the ints array.
+    private static final Object INT_VALUE = new Object();
+    private static final Object NONE_VALUE = new Object();
+    private static final Object DICT_VALUE = new Object();
+    // Memo entry of an object that is not kept once used (list or tuple of the index).
+    private static final Object NOT_MEMOIZED = new Object();
+
+    private record Global(String module, String name) {}
+    private record Part(long offset, long length, byte[] prefix) {}
+    private static final class PartList
+    {
+        private String owner = null;
+    }
+
+    private final InputStream in;
+    private final long key;
+    private final ArchiveIndex.Builder builder;
+
+    private Object[] stack = new Object[64];
+    private long[] ints = new long[64];
+    private int sp = 0;
+    private int[] marks = new int[16];
+    private int nbMarks = 0;
+
+    private Object[] memo = new Object[64];
+    private long[] memoInts = new long[64];
+    private int memoSize = 0;
+
+    private IndexDecoder(InputStream in, long key, ArchiveIndex.Builder builder)
+    {
+        this.in = new BufferedInputStream(in, 1 << 16);
+        this.key = key;
+        this.builder = builder;
+    }
+
+    /**
+     * Decode a pickled index into the given builder, xor-ing offsets and lengths with the given key.
+     */
+    static void decode(InputStream in, long key, ArchiveIndex.Builder builder) throws IOException
+    {
+        try {
+            new IndexDecoder(in, key, builder).decode();
+        }
+        catch (RuntimeException e) {
+            // Opcode sequences are checked as they are decoded, this only guards against a missed one.
+            throw new UnsupportedPickleException("Malformed pickled index", e);
+        }
+    }
+
+    private void decode() throws IOException
+    {
+        while (true) {
+            int opcode = in.read();
+            switch (opcode) {
+                case -1 -> throw new EOFException("Unexpected end of pickled index");
+                case STOP -> {
+                    if (sp != 1 || stack[0] != DICT_VALUE) {
+                        throw new UnsupportedPickleException("Pickled index is not a dict");
+                    }
+                    return;
+                }
+                case PROTO -> readByte();
+                case FRAME -> readLong(8);
+                case MARK -> pushMark();
+                case POP -> pop();
+                case POP_MARK -> popMark();
+
+                case EMPTY_DICT -> push(DICT_VALUE);
+                case DICT -> {
+                    int mark = popMark();
+                    push(DICT_VALUE);
+                    setItems(mark + 1);
+                }
+                case SETITEM -> setItems(sp - 2);
+                case SETITEMS -> setItems(popMark());
+
+                case EMPTY_LIST -> push(new PartList());
+                case LIST -> {
+                    int mark = popMark();
+                    if (sp != mark) {
+                        throw new UnsupportedPickleException("Non empty LIST opcode");
+                    }
+                    push(new PartList());
+                }
+                case APPEND -> appends(sp - 1);
+                case APPENDS -> appends(popMark());
+
+                case EMPTY_TUPLE -> tuple(sp);
+                case TUPLE -> tuple(popMark());
+                case TUPLE1 -> tuple(sp - 1);
+                case TUPLE2 -> tuple(sp - 2);
+                case TUPLE3 -> tuple(sp - 3);
+
+                case NONE -> push(NONE_VALUE);
+                case NEWTRUE -> pushInt(1);
+                case NEWFALSE -> pushInt(0);
+                case BININT -> pushInt((int) readLong(4));
+                case BININT1 -> pushInt(readByte());
+                case BININT2 -> pushInt(readLong(2));
+                case LONG1 -> pushInt(readSignedLong(readByte()));
+                case LONG4 -> pushInt(readSignedLong((int) readLong(4)));
+                case INT -> {
+                    String line = readLine();
+                    pushInt(switch (line) {
+                        case "00" -> 0;
+                        case "01" -> 1;
+                        default -> parseLong(line);
+                    });
+                }
+                case LONG -> {
+                    String line = readLine();
+                    pushInt(parseLong(line.endsWith("L") ? line.substring(0, line.length() - 1) : line));
+                }
+
+                case UNICODE -> push(decodeRawUnicodeEscape(readLine()));
+                case BINUNICODE -> push(readString(readLength(4), StandardCharsets.UTF_8));
+                case SHORT_BINUNICODE -> push(readString(readByte(), StandardCharsets.UTF_8));
+                case BINUNICODE8 -> push(readString(readLength(8), StandardCharsets.UTF_8));
+                // Python 2 str, decoded the same way as by the generic unpickler
+                case BINSTRING -> push(readString(readLength(4), StandardCharsets.ISO_8859_1));
+                case SHORT_BINSTRING -> push(readString(readByte(), StandardCharsets.ISO_8859_1));
+                case SHORT_BINBYTES -> push(readBytes(readByte()));
+                case BINBYTES -> push(readBytes(readLength(4)));
+                case BINBYTES8, BYTEARRAY8 -> push(readBytes(readLength(8)));
+
+                case GLOBAL -> push(new Global(readLine(), readLine()));
+                case STACK_GLOBAL -> {
+                    String name = popString();
+                    String module = popString();
+                    push(new Global(module, name));
+                }
+                case REDUCE -> reduce();
+
+                case PUT -> memoize(parseInt(readLine()));
+                case BINPUT -> memoize(readByte());
+                case LONG_BINPUT -> memoize(readLength(4));
+                case MEMOIZE -> memoize(memoSize);
+                case GET -> recall(parseInt(readLine()));
+                case BINGET -> recall(readByte());
+                case LONG_BINGET -> recall(readLength(4));
+
+                default -> throw new UnsupportedPickleException("Unsupported pickle opcode 0x"+Integer.toHexString(opcode));
+            }
+        }
+    }
+
+    /**
+     * Set the (key, list) pairs from the given stack position into the dict below them.
+     */
+    private void setItems(int from) throws IOException
+    {
+        if (from < stackBase() + 1 || stack[from - 1] != DICT_VALUE || (sp - from) % 2 != 0) {
+            throw new UnsupportedPickleException("Invalid dict items");
+        }
+        for (int i = from; i < sp; i += 2) {
+            if (!(stack[i] instanceof String name) || !(stack[i + 1] instanceof PartList list)) {
+                throw new UnsupportedPickleException("Index entry is not a (str, list) pair");
+            }
+            if (list.owner == null) {
+                // Empty list, the parts of non empty lists have already been emitted.
+                builder.addFile(name);
+                list.owner = name;
+            }
+            else if (!list.owner.equals(name)) {
+                throw new UnsupportedPickleException("List shared between index entries");
+            }
+        }
+        sp = from;
+    }
+
+    /**
+     * Append the parts from the given stack position to the list below them, emitting them to the builder.
+     */
+    private void appends(int from) throws IOException
+    {
+        if (from < stackBase() + 2 || !(stack[from - 1] instanceof PartList list) || !(stack[from - 2] instanceof String name)) {
+            throw new UnsupportedPickleException("Append to a list that is not an index entry");
+        }
+        for (int i = from; i < sp; i++) {
+            if (!(stack[i] instanceof Part part)) {
+                throw new UnsupportedPickleException("Index entry part is not a tuple");
+            }
+            if (list.owner == null) {
+                builder.addFile(name);
+                list.owner = name;
+            }
+            else if (!list.owner.equals(name)) {
+                throw new UnsupportedPickleException("List shared between index entries");
+            }
+            builder.addPart(part.offset ^ key, part.length ^ key, part.prefix);
+        }
+        sp = from;
+    }
+
+    private void tuple(int from) throws IOException
+    {
+        if (from < stackBase()) {
+            throw new UnsupportedPickleException("Stack underflow");
+        }
+        int size = sp - from;
+        Object tuple;
+        if ((size == 2 || size == 3) && stack[from] == INT_VALUE && stack[from + 1] == INT_VALUE
+            && (size == 2 || stack[from + 2] instanceof byte[] || stack[from + 2] instanceof String)) {
+            byte[] prefix = size == 2 ? new byte[0]
+                                      : stack[from + 2] instanceof byte[] bytes ? bytes
+                                                                                : ((String) stack[from + 2]).getBytes(StandardCharsets.ISO_8859_1);
+            tuple = new Part(ints[from], ints[from + 1], prefix);
+        }
+        else {
+            Object[] values = new Object[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = stack[from + i] == INT_VALUE ? Long.valueOf(ints[from + i]) : stack[from + i];
+            }
+            tuple = values;
+        }
+        sp = from;
+        push(tuple);
+    }
+
+    /**
+     * Apply the few callables used to pickle bytes with protocols lower than 3.
+     */
+    private void reduce() throws IOException
+    {
+        if (sp < 2 || !(stack[sp - 2] instanceof Global global) || !(stack[sp - 1] instanceof Object[] args)) {
+            throw new UnsupportedPickleException("Unsupported REDUCE");
+        }
+        sp -= 2;
+
+        String callable = global.module + "." + global.name;
+        byte[] result = switch (callable) {
+            case "_codecs.encode", "__builtin__.bytes", "builtins.bytes", "__builtin__.bytearray", "builtins.bytearray" -> {
+                if (args.length == 0 && !callable.equals("_codecs.encode")) {
+                    yield new byte[0];
+                }
+                if (args.length == 2 && args[0] instanceof String s && args[1] instanceof String encoding) {
+                    Charset charset = charset(encoding);
+                    if (!charset.canEncode()) {
+                        throw new UnsupportedPickleException("Unsupported encoding "+encoding);
+                    }
+                    yield s.getBytes(charset);
+                }
+                if (args.length == 1 && args[0] instanceof byte[] bytes) {
+                    yield bytes;
+                }
+                throw new UnsupportedPickleException("Unsupported arguments for "+callable);
+            }
+            default -> throw new UnsupportedPickleException("Unsupported callable "+callable);
+        };
+        push(result);
+    }
+
+    private static Charset charset(String encoding) throws UnsupportedPickleException
+    {
+        // Python codec names are case insensitive and '-' and '_' are interchangeable.
+        String normalized = encoding.toLowerCase(Locale.ROOT).replace('_', '-');
+        switch (normalized) {
+            case "latin1", "latin-1", "iso-8859-1", "iso8859-1", "l1":
+                return StandardCharsets.ISO_8859_1;
+            case "utf8", "utf-8":
+                return StandardCharsets.UTF_8;
+            case "ascii", "us-ascii":
+                return StandardCharsets.US_ASCII;
+        }
+        try {
+            return Charset.forName(normalized);
+        }
+        catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            throw new UnsupportedPickleException("Unsupported encoding "+encoding);
+        }
+    }
+
+    private void memoize(int index) throws IOException
+    {
+        if (sp <= stackBase()) {
+            throw new UnsupportedPickleException("Memoize on empty stack");
+        }
+        if (index < 0) {
+            throw new UnsupportedPickleException("Invalid memo index "+index);
+        }
+        if (index >= memo.length) {
+            int length = Math.max(memo.length * 2, index + 1);
+            memo = Arrays.copyOf(memo, length);
+            memoInts = Arrays.copyOf(memoInts, length);
+        }
+        Object value = stack[sp - 1];
+        memo[index] = (value instanceof Part || value instanceof Object[] || value instanceof PartList) ? NOT_MEMOIZED : value;
+        memoInts[index] = ints[sp - 1];
+        memoSize = Math.max(memoSize, index + 1);
+    }
+
+    private void recall(int index) throws IOException
+    {
+        Object value = index >= 0 && index < memo.length ? memo[index] : null;
+        if (value == null || value == NOT_MEMOIZED) {
+            throw new UnsupportedPickleException("Unsupported memo reference "+index);
+        }
+        if (value == INT_VALUE) {
+            pushInt(memoInts[index]);
+        }
+        else {
+            push(value);
+        }
+    }
+
+    private void push(Object value)
+    {
+        if (sp == stack.length) {
+            stack = Arrays.copyOf(stack, sp * 2);
+            ints = Arrays.copyOf(ints, sp * 2);
+        }
+        stack[sp++] = value;
+    }
+
+    private void pushInt(long value)
+    {
+        push(INT_VALUE);
+        ints[sp - 1] = value;
+    }
+
+    /**
+     * Stack position of the last mark, the opcodes cannot use the values below it.
+     */
+    private int stackBase()
+    {
+        return nbMarks == 0 ? 0 : marks[nbMarks - 1];
+    }
+
+    private Object pop() throws IOException
+    {
+        if (sp <= stackBase()) {
+            throw new UnsupportedPickleException("Stack underflow");
+        }
+        return stack[--sp];
+    }
+
+    private String popString() throws IOException
+    {
+        if (!(pop() instanceof String s)) {
+            throw new UnsupportedPickleException("Expected a string");
+        }
+        return s;
+    }
+
+    private void pushMark()
+    {
+        if (nbMarks == marks.length) {
+            marks = Arrays.copyOf(marks, nbMarks * 2);
+        }
+        marks[nbMarks++] = sp;
+    }
+
+    private int popMark() throws IOException
+    {
+        if (nbMarks == 0) {
+            throw new UnsupportedPickleException("No mark on the stack");
+        }
+        return marks[--nbMarks];
+    }
+
+    private int readByte() throws IOException
+    {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of pickled index");
+        }
+        return b;
+    }
+
+    /**
+     * Read an unsigned little-endian integer.
+     */
+    private long readLong(int nbBytes) throws IOException
+    {
+        long value = 0;
+        for (int i = 0; i < nbBytes; i++) {
+            value |= ((long) readByte()) << (8 * i);
+        }
+        return value;
+    }
+
+    /**
+     * Read a signed little-endian integer of at most 8 bytes.
+     */
+    private long readSignedLong(int nbBytes) throws IOException
+    {
+        if (nbBytes < 0 || nbBytes > 8) {
+            throw new UnsupportedPickleException("Integer too large");
+        }
+        if (nbBytes == 0) {
+            return 0;
+        }
+        long value = readLong(nbBytes);
+        int shift = 64 - 8 * nbBytes;
+        return (value << shift) >> shift;
+    }
+
+    private int readLength(int nbBytes) throws IOException
+    {
+        long length = readLong(nbBytes);
+        if (length < 0 || length > Integer.MAX_VALUE - 8) {
+            throw new UnsupportedPickleException("Length too large");
+        }
+        return (int) length;
+    }
+
+    private byte[] readBytes(int length) throws IOException
+    {
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException("Unexpected end of pickled index");
+        }
+        return bytes;
+    }
+
+    private String readString(int length, Charset charset) throws IOException
+    {
+        return new String(readBytes(length), charset);
+    }
+
+    private String readLine() throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = readByte()) != '\n') {
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Decode a line read as latin-1 with the raw-unicode-escape codec used by protocol 0.
+     */
+    private static String decodeRawUnicodeEscape(String line) throws UnsupportedPickleException
+    {
+        StringBuilder s = new StringBuilder(line.length());
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            int nbDigits = c != '\\' || i + 1 >= line.length() ? 0
+                         : line.charAt(i + 1) == 'u' ? 4
+                         : line.charAt(i + 1) == 'U' ? 8 : 0;
+            if (nbDigits == 0) {
+                s.append(c);
+                i++;
+                continue;
+            }
+            if (i + 2 + nbDigits > line.length()) {
+                throw new UnsupportedPickleException("Truncated unicode escape");
+            }
+            try {
+                s.appendCodePoint(Integer.parseInt(line, i + 2, i + 2 + nbDigits, 16));
+            }
+            catch (IllegalArgumentException e) {
+                throw new UnsupportedPickleException("Invalid unicode escape");
+            }
+            i += 2 + nbDigits;
+        }
+        return s.toString();
+    }
+
+    private static long parseLong(String s) throws UnsupportedPickleException
+    {
+        try {
+            return Long.parseLong(s.strip());
+        }
+        catch (NumberFormatException e) {
+            throw new UnsupportedPickleException("Invalid integer "+s);
+        }
+    }
+
+    private static int parseInt(String s) throws UnsupportedPickleException
+    {
+        try {
+            return Integer.parseInt(s.strip());
+        }
+        catch (NumberFormatException e) {
+            throw new UnsupportedPickleException("Invalid memo index "+s);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package nigloo.tool.rpa;
+
+import nigloo.tool.rpa.RenPyArchive.IndexEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Streaming encoder of archive indexes, the counterpart of {@link IndexDecoder}.
+ * <p>
+ * Files are pickled as they are added, with protocol 2 so that the index can be read by Python 2, the same way as
+ * Python pickles the index dict: offsets and lengths are xor-ed with the key, parts are 2-tuples, or 3-tuples when
+ * they have a prefix, and prefixes are pickled as {@code _codecs.encode(str, 'latin1')}. The pickle is compressed as
+ * it is written, so the whole index is never held uncompressed in memory.
+ */
+final class IndexEncoder implements Closeable
+{
+    // Number of items per SETITEMS, as Python
+    private static final int BATCH_SIZE = 1000;
+
+    private static final int MARK = '(';
+    private static final int STOP = '.';
+    private static final int BININT = 'J';
+    private static final int BININT1 = 'K';
+    private static final int BININT2 = 'M';
+    private static final int BINUNICODE = 'X';
+    private static final int APPEND = 'a';
+    private static final int APPENDS = 'e';
+    private static final int GLOBAL = 'c';
+    private static final int EMPTY_DICT = '}';
+    private static final int EMPTY_LIST = ']';
+    private static final int SETITEMS = 'u';
+    private static final int REDUCE = 'R';
+    private static final int PROTO = 0x80;
+    private static final int TUPLE2 = 0x86;
+    private static final int TUPLE3 = 0x87;
+    private static final int LONG1 = 0x8a;
+
+    private static final byte[] CODECS_ENCODE = "_codecs\nencode\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LATIN1 = "latin1".getBytes(StandardCharsets.US_ASCII);
+
+    private final long key;
+    private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(1 << 16);
+    private final Deflater deflater = new Deflater();
+    private final DeflaterOutputStream deflated = new DeflaterOutputStream(compressed, deflater, 1 << 16);
+    private final OutputStream out = new BufferedOutputStream(deflated, 1 << 16);
+    private final byte[] scratch = new byte[9];
+
+    private int batchSize = 0;
+
+    IndexEncoder(long key) throws IOException
+    {
+        this.key = key;
+        out.write(PROTO);
+        out.write(RenPyArchive.PICKLE_PROTOCOL);
+        out.write(EMPTY_DICT);
+    }
+
+    /**
+     * Add a file to the index. Its name must not have been added already.
+     */
+    void addFile(String name, List<IndexEntry> parts) throws IOException
+    {
+        if (batchSize == 0) {
+            out.write(MARK);
+        }
+
+        writeString(name.getBytes(StandardCharsets.UTF_8));
+        out.write(EMPTY_LIST);
+        if (parts.size() == 1) {
+            writePart(parts.get(0));
+            out.write(APPEND);
+        }
+        else if (!parts.isEmpty()) {
+            out.write(MARK);
+            for (IndexEntry part : parts) {
+                writePart(part);
+            }
+            out.write(APPENDS);
+        }
+
+        if (++batchSize == BATCH_SIZE) {
+            out.write(SETITEMS);
+            batchSize = 0;
+        }
+    }
+
+    void addFile(String name, long offset, long length) throws IOException
+    {
+        addFile(name, List.of(new IndexEntry(offset, length, new byte[0])));
+    }
+
+    /**
+     * Terminate the index.
+     *
+     * @return the compressed index
+     */
+    ByteBuffer finish() throws IOException
+    {
+        if (batchSize > 0) {
+            out.write(SETITEMS);
+            batchSize = 0;
+        }
+        out.write(STOP);
+        out.flush();
+        deflated.finish();
+        return ByteBuffer.wrap(compressed.toByteArray());
+    }
+
+    @Override
+    public void close()
+    {
+        deflater.end();
+    }
+
+    private void writePart(IndexEntry part) throws IOException
+    {
+        writeInt(part.offset() ^ key);
+        writeInt(part.length() ^ key);
+        if (part.prefix().length == 0) {
+            out.write(TUPLE2);
+            return;
+        }
+        // Python 3 pickles bytes with protocol 2 as _codecs.encode(bytes.decode('latin1'), 'latin1')
+        out.write(GLOBAL);
+        out.write(CODECS_ENCODE);
+        writeString(new String(part.prefix(), StandardCharsets.ISO_8859_1).getBytes(StandardCharsets.UTF_8));
+        writeString(LATIN1);
+        out.write(TUPLE2);
+        out.write(REDUCE);
+        out.write(TUPLE3);
+    }
+
+    private void writeString(byte[] utf8) throws IOException
+    {
+        out.write(BINUNICODE);
+        writeLittleEndian(utf8.length, 4);
+        out.write(utf8);
+    }
+
+    /**
+     * Write an integer with the shortest opcode, as Python does.
+     */
+    private void writeInt(long value) throws IOException
+    {
+        if (value >= 0 && value <= 0xFF) {
+            out.write(BININT1);
+            out.write((int) value);
+        }
+        else if (value >= 0 && value <= 0xFFFF) {
+            out.write(BININT2);
+            writeLittleEndian(value, 2);
+        }
+        else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            out.write(BININT);
+            writeLittleEndian(value, 4);
+        }
+        else {
+            // Minimal two's complement representation.
+            int nbBytes = 8;
+            while (nbBytes > 1 && (value >> (8 * (nbBytes - 1) - 1)) == (value >> 63)) {
+                nbBytes--;
+            }
+            out.write(LONG1);
+            out.write(nbBytes);
+            writeLittleEndian(value, nbBytes);
+        }
+    }
+
+    private void writeLittleEndian(long value, int nbBytes) throws IOException
+    {
+        for (int i = 0; i < nbBytes; i++) {
+            scratch[i] = (byte) (value >>> (8 * i));
+        }
+        out.write(scratch, 0, nbBytes);
+    }
+}
@@ -0,0 +1,137 @@
+package nigloo.tool.rpa;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, with a relative precision of 12.5%: each power of two is split in 8
+ * buckets. Values can be recorded from several threads at once.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NB_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration, negative durations being counted as 0.
+     */
+    public void record(long nanos)
+    {
+        nanos = Math.max(nanos, 0);
+        buckets.incrementAndGet(bucket(nanos));
+        count.increment();
+        total.add(nanos);
+        if (nanos > max.get()) {
+            max.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    /**
+     * Sum of the recorded durations.
+     */
+    public long getTotal()
+    {
+        return total.sum();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getTotal() / count;
+    }
+
+    /**
+     * Duration under which the given percentage of the recorded durations are, rounded up to the upper bound of its
+     * bucket.
+     *
+     * @param percentile between 0 and 100
+     * @return the duration, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile)
+    {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100: "+percentile);
+        }
+        long[] counts = new long[NB_BUCKETS];
+        long count = 0;
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clear the histogram. Values recorded during the reset may be partially kept.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < NB_BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.set(0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus", getCount(), getMean() / 1e3,
+                             getPercentile(50) / 1e3, getPercentile(99) / 1e3, getMax() / 1e3);
+    }
+
+    /**
+     * Bucket of a value: values under SUB_BUCKETS have their own bucket, then each power of two is split in
+     * SUB_BUCKETS buckets according to the bits following the highest one.
+     */
+    private static int bucket(long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (highestBit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int highestBit = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (highestBit - SUB_BUCKET_BITS);
+        long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (highestBit - SUB_BUCKET_BITS);
+        return lowerBound + (width - 1);
+    }
+}
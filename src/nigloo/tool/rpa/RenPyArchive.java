@@ -1,70 +1,72 @@
 package nigloo.tool.rpa;
 
-import net.razorvine.pickle.Pickler;
 import net.razorvine.pickle.Unpickler;
 
 import java.io.BufferedReader;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.zip.DeflaterOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 
+/**
+ * Ren'Py archive (.rpa) reader and writer.
+ * <p>
+ * Once the archive is loaded, files can be read concurrently from several threads: the archive is read with
+ * positional reads only and the index is immutable, removing a file replaces it. Loading, saving and adding files must
+ * not run concurrently with other operations.
+ */
 public class RenPyArchive implements Closeable
 {
-    public static void main(String[] args)
-    {
-        try {
-            Path file = Path.of("D:\\Documents\\.med_rev\\ssdssd\\Jeux\\Steam\\steamapps\\common\\Sakura Succubus\\game\\assets.rpa");
-            Path output = Path.of("C:\\Users\\sebas\\git\\GalleryManager\\target\\rpa_out");
-
-            RenPyArchive archive = new RenPyArchive(file, null, null, null, true);
-
-            List<Path> files = archive.list();
-
-            Files.createDirectories(output);
-
-
-            for (Path filename :files)
-            {
-                try
-                {
-                    byte[] contents = archive.read(filename);
-
-                    Path filepath = output.resolve(filename);
-                    Files.createDirectories(filepath.getParent());
-
-                    Files.write(filepath, contents);
-                }
-                catch (Exception e) {
-                    System.err.println("Could not extract file "+filename+" from archive");
-                    e.printStackTrace();
-                }
-            }
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
     public record Version(int major, int minor) {
         public static Version V1 = new Version(1,0);
         public static Version V2 = new Version(2,0);
@@ -77,18 +79,54 @@ public class RenPyArchive implements Closeable
         }
     }
 
-    private record IndexEntry(long offset, long length, byte[] prefix) {}
+    record IndexEntry(long offset, long length, byte[] prefix) {}
+
+    /**
+     * Source of the content of a file added to the archive. It may be opened several times.
+     */
+    @FunctionalInterface
+    public interface ContentSource {
+        InputStream open() throws IOException;
+    }
+
+    private interface IOSupplier<T> {
+        T get() throws IOException;
+    }
+
+    // Default executor of the asynchronous operations: one virtual thread per operation.
+    private static final Executor ASYNC_EXECUTOR = Thread::startVirtualThread;
+
+    /**
+     * Content of a file in internal storage.
+     */
+    private sealed interface StoredFile {}
+    private record StoredBytes(byte[] content) implements StoredFile {}
+    private record StoredPath(Path source) implements StoredFile {}
+    private record StoredSource(ContentSource source) implements StoredFile {}
 
     private Path file = null;
-    private SeekableByteChannel handle = null;
+    private FileChannel handle = null;
+    private MappedByteBuffer[] mappings = null;
+    // Absolute path of the archive file, once a slice of its mapping has been returned. The slice may outlive the
+    // mapping, so the file must not be truncated nor replaced anymore.
+    private volatile Path sharedMapping = null;
 
-    private Map<Path, byte[]> files = new HashMap<>();
-    private Map<Path, List<IndexEntry>> indexes = new HashMap<>();
+    private Map<Path, StoredFile> files = new ConcurrentHashMap<>();
+    // Immutable, replaced as a whole when a file is removed.
+    private volatile ArchiveIndex index = ArchiveIndex.empty();
 
     private Version version;
+    // Version of the opened archive file, version may differ to save it in another format.
+    private Version loadedVersion = null;
     private int padlength = 0;
     private long key;
     private boolean verbose = false;
+    private boolean memoryMapped = false;
+    private Path indexCache = null;
+    private ContentCache contentCache = null;
+    private ArchiveMetrics metrics = defaultMetrics;
+
+    private static volatile ArchiveMetrics defaultMetrics = ArchiveMetrics.NONE;
 
 
     private static final String RPA2_MAGIC = "RPA-2.0 ";
@@ -97,13 +135,53 @@ public class RenPyArchive implements Closeable
 
 
     // For backward compatibility, otherwise Python3-packed archives won't be read by Python2
-    private static final int PICKLE_PROTOCOL = 2;
+    static final int PICKLE_PROTOCOL = 2;
+
+    // The archive is mapped in windows of MAP_WINDOW bytes, each one overlapping the next by MAP_OVERLAP bytes
+    // so that any entry up to MAP_OVERLAP bytes long is entirely contained in a single window.
+    private static final long MAP_WINDOW = 1L << 30;
+    private static final long MAP_OVERLAP = 1L << 28;
+
+    // Batch reads merge entries separated by at most DEFAULT_MAX_GAP bytes, in reads of at most MAX_COALESCED_READ bytes.
+    public static final long DEFAULT_MAX_GAP = 64 * 1024;
+    private static final int MAX_COALESCED_READ = 8 * 1024 * 1024;
+
+    // When saving, files up to STAGE_LIMIT bytes are read in memory by workers, and written through a buffer of
+    // WRITE_BUFFER_SIZE bytes.
+    private static final int STAGE_LIMIT = 1024 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    // Size of the buffer of each verification worker.
+    private static final int VERIFY_BUFFER_SIZE = 1024 * 1024;
 
     public RenPyArchive(Path file, Version version, Integer padlength, Long key, Boolean verbose) throws IOException
     {
+        this(file, version, padlength, key, verbose, null);
+    }
+
+    /**
+     * @param memoryMapped if true, the archive is memory-mapped and entries are served from the mapping instead of
+     *                     being read through the file channel, see {@link #slice(Path)} for the lifetime of the
+     *                     slices of the mapping.
+     */
+    public RenPyArchive(Path file, Version version, Integer padlength, Long key, Boolean verbose, Boolean memoryMapped) throws IOException
+    {
+        this(file, version, padlength, key, verbose, memoryMapped, null);
+    }
+
+    /**
+     * @param memoryMapped if true, the archive is memory-mapped and entries are served from the mapping instead of
+     *                     being read through the file channel.
+     * @param indexCache   if not null, directory where archive indexes are cached, so that reopening an unchanged
+     *                     archive does not need to decode its index again.
+     */
+    public RenPyArchive(Path file, Version version, Integer padlength, Long key, Boolean verbose, Boolean memoryMapped, Path indexCache) throws IOException
+    {
+        this.indexCache = indexCache;
         this.padlength = Objects.requireNonNullElse(padlength, 0);
         this.key = Objects.requireNonNullElse(key, Long.parseLong("DEADBEEF", 16));
         this.verbose = Objects.requireNonNullElse(verbose, false);
+        this.memoryMapped = Objects.requireNonNullElse(memoryMapped, false);
 
         if (file != null) {
             load(file);
@@ -115,6 +193,10 @@ public class RenPyArchive implements Closeable
     @Override
     public void close() throws IOException
     {
+        if (contentCache != null) {
+            contentCache.invalidateAll(this);
+        }
+        mappings = null;
         if (handle != null) {
             handle.close();
         }
@@ -123,7 +205,7 @@ public class RenPyArchive implements Closeable
     /**
      * Determine archive version.
      */
-    private Version getVersion() throws IOException
+    private Version readVersion() throws IOException
     {
         handle.position(0);
         String magic = new BufferedReader(new InputStreamReader(Channels.newInputStream(handle), StandardCharsets.UTF_8)).readLine();
@@ -147,19 +229,17 @@ public class RenPyArchive implements Closeable
     /**
      * Extract file indexes from opened archive.
      */
-    private Map<Path, List<IndexEntry>> extractIndexes() throws IOException
+    private ArchiveIndex extractIndexes() throws IOException
     {
         handle.position(0);
-        Map<Path, List<IndexEntry>> indexes = null;
-        int offset = 0;
+        long offset = 0;
         if (List.of(Version.V2, Version.V3, Version.V3_2).contains(version))
         {
             // Fetch metadata.
             String metadata = new BufferedReader(new InputStreamReader(Channels.newInputStream(handle),
                                                                        StandardCharsets.UTF_8)).readLine();
             String[] vals = metadata.split("\\s");
-            //int
-            offset = Integer.parseInt(vals[1], 16);
+            offset = Long.parseLong(vals[1], 16);
             if (version.equals(Version.V3))
             {
                 key = 0;
@@ -180,14 +260,33 @@ public class RenPyArchive implements Closeable
             handle.position(offset);
         }
 
-        // Load in indexes.
+        // Load in indexes, deobfuscating them on the fly.
+        long key = List.of(Version.V3, Version.V3_2).contains(version) ? this.key : 0;
+        long start = System.nanoTime();
+        ArchiveEvents.IndexDecode event = new ArchiveEvents.IndexDecode();
+        event.begin();
+        long indexSize = handle.size() - offset;
+        // The input streams are not closed as it would close the archive handle.
+        ArchiveIndex.Builder index = new ArchiveIndex.Builder();
+        Inflater inflater = new Inflater();
+        try {
+            IndexDecoder.decode(new InflaterInputStream(Channels.newInputStream(handle), inflater, 1 << 16), key, index);
+            return indexDecoded(index.build(), indexSize, start, event);
+        }
+        catch (IndexDecoder.UnsupportedPickleException e) {
+            verbosePrint("Falling back to generic unpickler: "+e.getMessage());
+            handle.position(offset);
+        }
+        finally {
+            inflater.end();
+        }
+
         Map<?, ?> rawIndexes = (Map<?, ?>) new Unpickler().load(new InflaterInputStream(Channels.newInputStream(handle)));
-        indexes = new HashMap<>(rawIndexes.size());
+        index = new ArchiveIndex.Builder();
         for (Entry<?, ?> e : rawIndexes.entrySet()) {
-            Path path = Path.of(e.getKey().toString());
+            index.addFile(e.getKey().toString());
             @SuppressWarnings("unchecked")
             List<Object[]> rawParts = (List<Object[]>) e.getValue();
-            List<IndexEntry> parts = new ArrayList<>(rawParts.size());
             for (Object[] rawPart : rawParts) {
                 long partOffset = ((Number) rawPart[0]).longValue();
                 long partSize = ((Number) rawPart[1]).longValue();
@@ -200,26 +299,66 @@ public class RenPyArchive implements Closeable
                         partPrefix = rawPart[2].toString().getBytes(StandardCharsets.ISO_8859_1);
                     }
                 }
-                parts.add(new IndexEntry(partOffset, partSize, partPrefix));
+                index.addPart(partOffset ^ key, partSize ^ key, partPrefix);
             }
-            indexes.put(path, parts);
         }
 
-        // Deobfuscate indexes.
-        if (List.of(Version.V3, Version.V3_2).contains(version))
-        {
-            for (List<IndexEntry> parts : indexes.values()) {
-                for (int i = 0 ; i < parts.size() ; i++) {
-                    IndexEntry part = parts.get(i);
-                    part = new IndexEntry(part.offset ^ key, part.length ^ key, part.prefix);
-                    parts.set(i, part);
-                }
+        return indexDecoded(index.build(), indexSize, start, event);
+    }
+
+    private ArchiveIndex indexDecoded(ArchiveIndex index, long indexSize, long start, ArchiveEvents.IndexDecode event)
+    {
+        event.complete(file, index.size(), indexSize);
+        metrics.operationCompleted(file, ArchiveMetrics.Operation.INDEX_DECODE, indexSize, System.nanoTime() - start);
+        return index;
+    }
+
+
+    /**
+     * Get file indexes from the index cache, or extract them from opened archive and update the cache.
+     */
+    private ArchiveIndex extractCachedIndexes() throws IOException
+    {
+        IndexCache.Key cacheKey = IndexCache.keyOf(file, readHeaderLine());
+        Path cacheFile = IndexCache.cacheFile(indexCache, cacheKey);
+        try {
+            IndexCache.Content cached = IndexCache.read(cacheFile, cacheKey);
+            metrics.cacheAccess(file, ArchiveMetrics.Cache.INDEX, cached != null);
+            if (cached != null) {
+                verbosePrint("Read archive index from cache file "+cacheFile);
+                key = cached.key();
+                return cached.index();
             }
         }
+        catch (Exception e) {
+            verbosePrint("Could not read index cache file "+cacheFile+": "+e);
+        }
 
-        return indexes;
+        ArchiveIndex index = extractIndexes();
+        try {
+            IndexCache.write(cacheFile, cacheKey, key, index);
+            verbosePrint("Wrote archive index to cache file "+cacheFile);
+        }
+        catch (Exception e) {
+            verbosePrint("Could not write index cache file "+cacheFile+": "+e);
+        }
+        return index;
     }
 
+    /**
+     * Read the first line of the opened archive, without decoding it.
+     */
+    private String readHeaderLine() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(256);
+        readFully(header, 0);
+        header.flip();
+        int end = 0;
+        while (end < header.limit() && header.get(end) != '\n') {
+            end++;
+        }
+        return new String(header.array(), 0, end, StandardCharsets.ISO_8859_1);
+    }
 
     /**
      * Generate pseudorandom padding (for whatever reason).
@@ -228,20 +367,29 @@ public class RenPyArchive implements Closeable
         ThreadLocalRandom random = ThreadLocalRandom.current();
         int length = random.nextInt(1, padlength);
 
-        StringBuilder padding = new StringBuilder();
+        // UTF-8 encoding of random characters from U+0001 to U+00FE, without going through a string.
+        byte[] padding = new byte[2 * length];
+        int size = 0;
         while (length > 0) {
-            padding.append(Character.toChars(random.nextInt(1, 255)));
+            int c = random.nextInt(1, 255);
+            if (c < 0x80) {
+                padding[size++] = (byte) c;
+            }
+            else {
+                padding[size++] = (byte) (0xC0 | (c >> 6));
+                padding[size++] = (byte) (0x80 | (c & 0x3F));
+            }
             length--;
         }
 
-        return padding.toString().getBytes(StandardCharsets.UTF_8);
+        return Arrays.copyOf(padding, size);
     }
 
 
     /**
      * Converts a filename to archive format.
      */
-    private String convertFilename(Path filename) {
+    static String convertFilename(Path filename) {
         FileSystem fs = filename.getFileSystem();
         filename = filename.normalize();
         if (filename.isAbsolute()) {
@@ -259,356 +407,1883 @@ public class RenPyArchive implements Closeable
         }
     }
 
+    /**
+     * Format version of the archive, the one used when saving.
+     */
+    public Version getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Set the format version used when saving the archive with {@link #save(Path)}. The version of an archive file
+     * cannot be changed in place, by {@link #appendSave()} or {@link #compact()}.
+     */
+    public void setVersion(Version version)
+    {
+        this.version = Objects.requireNonNull(version, "version cannot be null");
+    }
+
+    /**
+     * Set the cache used to read files from the opened archive, or null to read them from the archive every time.
+     * The same cache can be set on several archives, to share its size limit.
+     */
+    public void setContentCache(ContentCache contentCache)
+    {
+        if (this.contentCache != null) {
+            this.contentCache.invalidateAll(this);
+        }
+        this.contentCache = contentCache;
+    }
+
+    public ContentCache getContentCache()
+    {
+        return contentCache;
+    }
+
+    /**
+     * Set the listener notified of the I/O of this archive, or null not to notify any.
+     */
+    public void setMetrics(ArchiveMetrics metrics)
+    {
+        this.metrics = Objects.requireNonNullElse(metrics, ArchiveMetrics.NONE);
+    }
+
+    public ArchiveMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Set the metrics listener of the archives created afterward, or null not to set any, so that their loading is
+     * measured too.
+     */
+    public static void setDefaultMetrics(ArchiveMetrics metrics)
+    {
+        defaultMetrics = Objects.requireNonNullElse(metrics, ArchiveMetrics.NONE);
+    }
+
+    public static ArchiveMetrics getDefaultMetrics()
+    {
+        return defaultMetrics;
+    }
+
     /**
      * List files in archive and current internal storage.
      */
     public List<Path> list() {
-        List<Path> list = new ArrayList<>(indexes.size() + files.size());
-        list.addAll(indexes.keySet());
+        List<Path> list = new ArrayList<>(index.size() + files.size());
+        for (int id : index.ids()) {
+            list.add(index.path(id));
+        }
         list.addAll(files.keySet());
         return list;
     }
 
     /**
-     * Check if a file exists in the archive.
+     * List files in archive and current internal storage whose name starts with the given prefix, using '/' as
+     * separator, such as "images/characters/". Files of the archive are listed in name order, followed by the files of
+     * internal storage.
      */
-    public boolean hasFile(Path filename) {
-        return indexes.containsKey(filename) || files.containsKey(filename);
+    public List<Path> list(String prefix) {
+        ArchiveIndex index = this.index;
+        int[] ids = index.ids(prefix);
+        List<Path> list = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            list.add(index.path(id));
+        }
+        list.addAll(storedFiles(prefix));
+        return list;
     }
 
     /**
-     * Read file from archive or internal storage.
+     * List files in archive and current internal storage whose name matches a glob pattern, with the syntax of
+     * {@link java.nio.file.FileSystem#getPathMatcher(String)} and '/' as separator, such as "images/**.png". Only
+     * the files starting with the literal beginning of the pattern are matched against it.
      */
-    public byte[] read(Path filename) throws IOException
-    {
-        // Check if the file exists in our indexes.
-        if (!files.containsKey(filename) && !indexes.containsKey(filename)) {
-            throw new NoSuchElementException("The requested file "+filename+" does not exist in the given Ren'Py archive");
+    public List<Path> glob(String glob) {
+        Pattern pattern = Pattern.compile(Globs.toRegex(glob));
+        int literalEnd = 0;
+        while (literalEnd < glob.length() && "\\*?[{".indexOf(glob.charAt(literalEnd)) < 0) {
+            literalEnd++;
         }
 
-        // If it's in our opened archive index, and our archive handle isn't valid, something is obviously wrong.
-        if (!files.containsKey(filename) && indexes.containsKey(filename) && handle == null) {
-            throw new NoSuchElementException("The requested file "+filename+" does not exist in the given Ren'Py archive");
+        ArchiveIndex index = this.index;
+        List<Path> list = new ArrayList<>();
+        for (int id : index.ids(glob.substring(0, literalEnd))) {
+            String name = index.name(id);
+            if (pattern.matcher(name).matches()) {
+                list.add(Path.of(name));
+            }
         }
-
-        // Check our simplified internal indexes first, in case someone wants to read a file they added before without saving, for some unholy reason.
-        if (files.containsKey(filename))
-        {
-            verbosePrint("Reading file "+filename+" from internal storage...");
-            return files.get(filename);
+        for (Path filename : files.keySet()) {
+            if (pattern.matcher(convertFilename(filename)).matches()) {
+                list.add(filename);
+            }
         }
-        // We need to read the file from our open archive.
-        else
+        return list;
+    }
+
+    /**
+     * Check if a directory exists in archive or internal storage, that is if at least one file is in it. The root
+     * directory always exists.
+     */
+    public boolean isDirectory(Path directory) {
+        String prefix = directoryPrefix(directory);
+        return prefix.isEmpty() || index.count(prefix) > 0 || !storedFiles(prefix).isEmpty();
+    }
+
+    /**
+     * List the files and subdirectories directly in a directory of the archive or internal storage, in name order.
+     * Subdirectories come with the number and total size of the files they contain, recursively.
+     *
+     * @throws NoSuchElementException if the directory does not exist
+     */
+    public List<DirectoryEntry> listDirectory(Path directory) throws IOException
+    {
+        String prefix = directoryPrefix(directory);
+        Path dir = prefix.isEmpty() ? null : Path.of(prefix.substring(0, prefix.length() - 1));
+        ArchiveIndex index = this.index;
+
+        Map<String, DirectoryEntry> children = new TreeMap<>();
+        index.forEachChild(prefix, new ArchiveIndex.ChildVisitor()
         {
-            // Read offset and length, seek to the offset and read the file contents.
-            IndexEntry part = indexes.get(filename).getFirst();
-
-            verbosePrint("Reading file "+filename+" from data file "+file+"... (offset = "+part.offset+", length = "+part.length+" bytes)");
-            handle.position(part.offset);
-            byte[] content = new byte[(int) part.length];
-            System.arraycopy(part.prefix, 0, content, 0, part.prefix.length);
-            int sizeToRead = (int) (part.length - part.prefix.length);
-            int read = Channels.newInputStream(handle).read(content, part.prefix.length, sizeToRead);
-            if (read != sizeToRead) {
-                content = Arrays.copyOf(content, read);
+            @Override
+            public void file(int id)
+            {
+                Path path = index.path(id);
+                children.put(path.getFileName().toString(), new DirectoryEntry(path, false, 1, index.size(id)));
+            }
+
+            @Override
+            public void directory(String name, int nbFiles, long size)
+            {
+                children.put(name, new DirectoryEntry(dir == null ? Path.of(name) : dir.resolve(name), true, nbFiles, size));
+            }
+        });
+
+        // Files of internal storage, usually few, are merged into the archive ones.
+        for (Path filename : storedFiles(prefix)) {
+            String relative = convertFilename(filename).substring(prefix.length());
+            int sep = relative.indexOf('/');
+            long size = size(filename);
+            if (sep < 0) {
+                children.put(relative, new DirectoryEntry(filename, false, 1, size));
+            }
+            else {
+                String name = relative.substring(0, sep);
+                children.merge(name,
+                               new DirectoryEntry(dir == null ? Path.of(name) : dir.resolve(name), true, 1, size),
+                               (e1, e2) -> new DirectoryEntry(e1.path(), true, e1.nbFiles() + 1, e1.size() + size));
             }
-            return content;
         }
+
+        if (children.isEmpty() && !prefix.isEmpty()) {
+            throw new NoSuchElementException("The requested directory "+directory+" does not exist in this archive");
+        }
+        return new ArrayList<>(children.values());
     }
-    
 
     /**
-     * Modify a file in archive or internal storage.
+     * Total size of the files in a directory of the archive or internal storage, recursively. Only the sizes of the
+     * files of internal storage are computed, the ones of the archive being aggregated when it is loaded.
      */
-    public void change(Path filename, byte[] content)
+    public long directorySize(Path directory) throws IOException
     {
-         // Our 'change' is basically removing the file from our indexes first, and then re-adding it.
-        remove(filename);
-        add(filename, content);
+        String prefix = directoryPrefix(directory);
+        long size = index.totalSize(prefix);
+        for (Path filename : storedFiles(prefix)) {
+            size += size(filename);
+        }
+        return size;
     }
 
-
     /**
-     * Add a file to the internal storage.
+     * Name prefix of the files in a directory: its name followed by '/', or the empty string for the root.
      */
-    public void add(Path filename, byte[] content) {
-        if (hasFile(filename)) {
-            throw new IllegalArgumentException("File "+filename+" already exists in archive");
+    private static String directoryPrefix(Path directory)
+    {
+        String name = convertFilename(directory);
+        return name.isEmpty() ? name : name + "/";
+    }
+
+    private List<Path> storedFiles(String prefix)
+    {
+        List<Path> stored = new ArrayList<>();
+        for (Path filename : files.keySet()) {
+            if (convertFilename(filename).startsWith(prefix)) {
+                stored.add(filename);
+            }
         }
+        return stored;
+    }
 
-        verbosePrint("Adding file "+filename+" to archive... (length = "+content.length+" bytes)");
-        files.put(filename, content);
+    /**
+     * Check if a file exists in the archive.
+     */
+    public boolean hasFile(Path filename) {
+        return files.containsKey(filename) || index.find(filename) >= 0;
     }
 
+    /**
+     * Size of a file in archive or internal storage.
+     */
+    public long size(Path filename) throws IOException
+    {
+        StoredFile stored = files.get(filename);
+        if (stored == null) {
+            return entrySize(getIndexEntries(filename));
+        }
+        return switch (stored) {
+            case StoredBytes bytes -> bytes.content.length;
+            case StoredPath path -> Files.size(path.source);
+            case StoredSource source -> {
+                try (InputStream in = source.source.open()) {
+                    yield in.transferTo(OutputStream.nullOutputStream());
+                }
+            }
+        };
+    }
 
     /**
-     * Remove a file from archive or internal storage.
+     * Read file from archive or internal storage.
+     *
+     * @throws IOException if the file cannot be read, or is too large to fit in an array, see {@link #openStream(Path)}
      */
-    public void remove(Path filename) {
-        if (files.containsKey(filename))
+    public byte[] read(Path filename) throws IOException
+    {
+        // Check our simplified internal indexes first, in case someone wants to read a file they added before without saving, for some unholy reason.
+        StoredFile stored = files.get(filename);
+        if (stored != null)
         {
-            verbosePrint("Removing file "+filename+" from internal storage...");
-            files.remove(filename);
+            verbosePrint("Reading file "+filename+" from internal storage...");
+            return switch (stored) {
+                case StoredBytes bytes -> bytes.content;
+                case StoredPath path -> Files.readAllBytes(path.source);
+                case StoredSource source -> {
+                    try (InputStream in = source.source.open()) {
+                        yield in.readAllBytes();
+                    }
+                }
+            };
         }
-        else if (indexes.containsKey(filename))
+        // We need to read the file from our open archive, unless it is cached.
+        else if (contentCache != null)
         {
-            verbosePrint("Removing file "+filename+" from archive indexes...");
-            indexes.remove(filename);
+            ByteBuffer cached = slice(filename, false);
+            byte[] content = new byte[cached.remaining()];
+            cached.get(content);
+            return content;
         }
         else
         {
-            throw new NoSuchElementException("The requested file "+filename+" does not exist in this archive");
+            long start = System.nanoTime();
+            ArchiveEvents.Read event = new ArchiveEvents.Read();
+            event.begin();
+            byte[] content = readArchived(filename);
+            event.complete(file, filename, content.length, false);
+            metrics.operationCompleted(file, ArchiveMetrics.Operation.READ, content.length, System.nanoTime() - start);
+            return content;
         }
     }
 
     /**
-     * Load archive.
+     * Read file from the opened archive.
      */
-    private void load(Path file) throws IOException
+    private byte[] readArchived(Path filename) throws IOException
     {
-        if (handle != null) {
-            handle.close();
+        // Read offset and length of each part, and read the parts contents straight into their place in the file content.
+        List<IndexEntry> parts = getIndexEntries(filename);
+        long length = entrySize(parts);
+
+        verbosePrint("Reading file "+filename+" from data file "+file+"... (offset = "+firstOffset(parts)+", length = "+length+" bytes, "+parts.size()+" part(s))");
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("File "+filename+" is too large to be read in memory ("+length+" bytes), use openStream instead");
         }
-        this.file = file;
-        files = new HashMap<>();
-        handle = Files.newByteChannel(file, StandardOpenOption.READ);
-        version = getVersion();
-        indexes = extractIndexes();
+        byte[] content = new byte[(int) length];
+        int position = 0;
+        for (IndexEntry part : parts) {
+            System.arraycopy(part.prefix, 0, content, position, part.prefix.length);
+            position += part.prefix.length;
+            int sizeToRead = (int) dataLength(part);
+            ByteBuffer mapped = mappedRange(part.offset, sizeToRead);
+            int read;
+            if (mapped != null) {
+                mapped.get(content, position, sizeToRead);
+                read = sizeToRead;
+            }
+            else {
+                read = readFully(ByteBuffer.wrap(content, position, sizeToRead), part.offset);
+            }
+            position += read;
+            if (read != sizeToRead) {
+                // Truncated archive.
+                return Arrays.copyOf(content, position);
+            }
+        }
+        return content;
     }
 
     /**
-     * Save current state into a new file, merging archive and internal storage, rebuilding indexes, and optionally saving in another format version.
+     * Read file from archive or internal storage as a read-only buffer.
+     * In memory-mapped mode, single part entries without prefix are returned as a slice of the mapping, without any copy.
+     * Otherwise, if a content cache is set, archive files are read through it.
+     * Files larger than 2 GB cannot be sliced, use {@link #openStream(Path)} or {@link #openChannel(Path)} instead.
+     * <p>
+     * A slice of the mapping stays valid after the archive is closed, as long as the archive file is not truncated or
+     * replaced. Once one has been returned, this archive refuses to {@link #compact()} the file or to {@link #save}
+     * over it, since it cannot know whether the slice is still in use: open the archive without memory mapping to do
+     * so. On Windows, a file cannot be truncated or replaced while mapped, and mappings are only released once garbage
+     * collected.
      */
-    public void save(Path filename) throws IOException
+    public ByteBuffer slice(Path filename) throws IOException
     {
-        if (filename == null) {
-            filename = this.file;
-        }
-        if (filename == null) {
-            throw new IllegalArgumentException("No target file found for saving archive");
-        }
-        if (!List.of(Version.V2, Version.V3).contains(version)) {
-            throw new IllegalStateException("Saving is only supported for version 2 and 3 archives");
-        }
-
-        verbosePrint("Rebuilding archive index...");
-        // Fill our own files structure with the files added or changed in this session.
-        Map<Path, byte[]> files = this.files;
-        // First, read files from the current archive into our files structure.
-        for (Path file : List.copyOf(this.indexes.keySet())) {
-            byte[] content = read(file);
-            // Remove from indexes array once read, add to our own array.
-            this.indexes.remove(file);
-            files.put(file, content);
-        }
+        return slice(filename, true);
+    }
 
-        // Predict header length, we'll write that one last.
-        long offset = 0;
-        if (this.version.equals(Version.V3))
-            offset = 34;
-        else if (this.version.equals(Version.V2))
-            offset = 25;
-
-        SeekableByteChannel archiveC = Files.newByteChannel(file, StandardOpenOption.WRITE);
-        archiveC.position(offset);
-        OutputStream archive = Channels.newOutputStream(archiveC);
-
-        // Build our own indexes while writing files to the archive.
-        Map<String, List<Object[]>> indexes = new HashMap<>();
-        verbosePrint("Writing files to archive file...");
-        for (Entry<Path, byte[]> e : files.entrySet())
+    /**
+     * @param shared false if the caller only copies the returned buffer, so that a slice of the mapping does not
+     *               outlive the call
+     */
+    private ByteBuffer slice(Path filename, boolean shared) throws IOException
+    {
+        if (!files.containsKey(filename))
         {
-            Path file = e.getKey();
-            byte[] content = e.getValue();
-            // Generate random padding, for whatever reason.
-            if (this.padlength > 0) {
-                byte[] padding = generatePadding();
-                archive.write(padding);
-                offset += padding.length;
+            long start = System.nanoTime();
+            ArchiveEvents.Read event = new ArchiveEvents.Read();
+            event.begin();
+            List<IndexEntry> parts = getIndexEntries(filename);
+            if (parts.size() == 1 && parts.get(0).prefix.length == 0) {
+                IndexEntry part = parts.get(0);
+                ByteBuffer mapped = mappedRange(part.offset, part.length);
+                if (mapped != null) {
+                    if (shared) {
+                        sharedMapping = file.toAbsolutePath().normalize();
+                    }
+                    verbosePrint("Reading file "+filename+" from mapping of data file "+file+"... (offset = "+part.offset+", length = "+part.length+" bytes)");
+                    event.complete(file, filename, mapped.remaining(), true);
+                    metrics.operationCompleted(file, ArchiveMetrics.Operation.READ, mapped.remaining(), System.nanoTime() - start);
+                    return mapped;
+                }
+            }
+            if (contentCache != null) {
+                boolean[] loaded = {false};
+                ByteBuffer content = contentCache.get(this, filename, () -> {
+                    loaded[0] = true;
+                    return ByteBuffer.wrap(readArchived(filename));
+                });
+                metrics.cacheAccess(file, ArchiveMetrics.Cache.CONTENT, !loaded[0]);
+                event.complete(file, filename, content.remaining(), !loaded[0]);
+                metrics.operationCompleted(file, ArchiveMetrics.Operation.READ, content.remaining(), System.nanoTime() - start);
+                return content;
             }
-
-            archive.write(content);
-            // Update index.
-            if (version.equals(Version.V3))
-                indexes.put(convertFilename(file), List.<Object[]>of(new Object[]{offset ^ key, content.length ^ key}));
-            else if (version.equals(Version.V2))
-                indexes.put(convertFilename(file), List.<Object[]>of(new Object[]{offset, content.length}));
-            offset += content.length;
         }
+        return ByteBuffer.wrap(read(filename)).asReadOnlyBuffer();
+    }
 
-        // Write the indexes.
-        verbosePrint("Writing archive index to archive file...");
-        new Pickler().dump(indexes, new DeflaterOutputStream(archive));
-        // Now write the header.
-        verbosePrint("Writing header to archive file... (version = RPAv"+version+")");
-        archiveC.position(0);
-        archive = Channels.newOutputStream(archiveC);//Not sure if needed
-        if (version.equals(Version.V3))
-            archive.write(String.format("%s%016x %08x\n", RPA3_MAGIC, offset, key).getBytes(StandardCharsets.UTF_8));
-        else
-            archive.write(String.format("%s%016x\n", RPA3_MAGIC, offset).getBytes(StandardCharsets.UTF_8));
-        // We're done, close it.
-        archive.close();
+    /**
+     * Open a stream on a file from archive or internal storage. The file content is read as the stream is consumed.
+     */
+    public InputStream openStream(Path filename) throws IOException
+    {
+        return Channels.newInputStream(openChannel(filename));
+    }
 
-        // Reload the file in our inner database.
-        load(filename);
+    /**
+     * Open a read-only seekable channel on a file from archive or internal storage. The file content is read as the
+     * channel is consumed, using positional reads on the archive, so several channels can be used at the same time.
+     */
+    public SeekableByteChannel openChannel(Path filename) throws IOException
+    {
+        StoredFile stored = files.get(filename);
+        if (stored instanceof StoredPath path)
+        {
+            verbosePrint("Opening file "+filename+" from "+path.source+"...");
+            return Files.newByteChannel(path.source, StandardOpenOption.READ);
+        }
+        else if (stored != null)
+        {
+            // Stream sources cannot be seeked, they are loaded in memory.
+            return new EntryChannel(read(filename));
+        }
+
+        List<IndexEntry> parts = getIndexEntries(filename);
+        verbosePrint("Opening file "+filename+" from data file "+file+"... (offset = "+firstOffset(parts)+", length = "+entrySize(parts)+" bytes, "+parts.size()+" part(s))");
+        return new EntryChannel(handle, parts, bytes -> metrics.positionalRead(file, bytes));
     }
-//
-//if __name__ == "__main__":
-//    import argparse
-//
-//    parser = argparse.ArgumentParser(
-//        description='A tool for working with Ren\'Py archive files.',
-//        epilog='The FILE argument can optionally be in ARCHIVE=REAL format, mapping a file in the archive file system to a file on your real file system. An example of this: rpatool -x test.rpa script.rpyc=/home/foo/test.rpyc',
-//        add_help=False)
-//
-//    parser.add_argument('archive', metavar='ARCHIVE', help='The Ren\'py archive file to operate on.')
-//    parser.add_argument('files', metavar='FILE', nargs='*', action='append', help='Zero or more files to operate on.')
-//
-//    parser.add_argument('-l', '--list', action='store_true', help='List files in archive ARCHIVE.')
-//    parser.add_argument('-x', '--extract', action='store_true', help='Extract FILEs from ARCHIVE.')
-//    parser.add_argument('-c', '--create', action='store_true', help='Creative ARCHIVE from FILEs.')
-//    parser.add_argument('-d', '--delete', action='store_true', help='Delete FILEs from ARCHIVE.')
-//    parser.add_argument('-a', '--append', action='store_true', help='Append FILEs to ARCHIVE.')
-//
-//    parser.add_argument('-2', '--two', action='store_true', help='Use the RPAv2 format for creating/appending to archives.')
-//    parser.add_argument('-3', '--three', action='store_true', help='Use the RPAv3 format for creating/appending to archives (default).')
-//
-//    parser.add_argument('-k', '--key', metavar='KEY', help='The obfuscation key used for creating RPAv3 archives, in hexadecimal (default: 0xDEADBEEF).')
-//    parser.add_argument('-p', '--padding', metavar='COUNT', help='The maximum number of bytes of padding to add between files (default: 0).')
-//    parser.add_argument('-o', '--outfile', help='An alternative output archive file when appending to or deleting from archives, or output directory when extracting.')
-//
-//    parser.add_argument('-h', '--help', action='help', help='Print this help and exit.')
-//    parser.add_argument('-v', '--verbose', action='store_true', help='Be a bit more verbose while performing operations.')
-//    parser.add_argument('-V', '--version', action='version', version='rpatool v0.8', help='Show version information.')
-//    arguments = parser.parse_args()
-//
-//    # Determine RPA version.
-//    if arguments.two:
-//        version = 2
-//    else:
-//        version = 3
-//
-//    # Determine RPAv3 key.
-//    if 'key' in arguments and arguments.key is not None:
-//        key = int(arguments.key, 16)
-//    else:
-//        key = 0xDEADBEEF
-//
-//    # Determine padding bytes.
-//    if 'padding' in arguments and arguments.padding is not None:
-//        padding = int(arguments.padding)
-//    else:
-//        padding = 0
-//
-//    # Determine output file/directory and input archive
-//    if arguments.create:
-//        archive = None
-//        output = _unicode(arguments.archive)
-//    else:
-//        archive = _unicode(arguments.archive)
-//        if 'outfile' in arguments and arguments.outfile is not None:
-//            output = _unicode(arguments.outfile)
-//        else:
-//            # Default output directory for extraction is the current directory.
-//            if arguments.extract:
-//                output = '.'
-//            else:
-//                output = _unicode(arguments.archive)
-//
-//    # Normalize files.
-//    if len(arguments.files) > 0 and isinstance(arguments.files[0], list):
-//        arguments.files = arguments.files[0]
-//
-//    try:
-//        archive = RenPyArchive(archive, padlength=padding, key=key, version=version, verbose=arguments.verbose)
-//    except IOError as e:
-//        print('Could not open archive file {0} for reading: {1}'.format(archive, e), file=sys.stderr)
-//        sys.exit(1)
-//
-//    if arguments.create or arguments.append:
-//        # We need this seperate function to recursively process directories.
-//        def add_file(filename):
-//            # If the archive path differs from the actual file path, as given in the argument,
-//            # extract the archive path and actual file path.
-//            if filename.find('=') != -1:
-//                (outfile, filename) = filename.split('=', 2)
-//            else:
-//                outfile = filename
-//
-//            if os.path.isdir(filename):
-//                for file in os.listdir(filename):
-//                    # We need to do this in order to maintain a possible ARCHIVE=REAL mapping between directories.
-//                    add_file(outfile + os.sep + file + '=' + filename + os.sep + file)
-//            else:
-//                try:
-//                    with open(filename, 'rb') as file:
-//                        archive.add(outfile, file.read())
-//                except Exception as e:
-//                    print('Could not add file {0} to archive: {1}'.format(filename, e), file=sys.stderr)
-//
-//        # Iterate over the given files to add to archive.
-//        for filename in arguments.files:
-//            add_file(_unicode(filename))
-//
-//        # Set version for saving, and save.
-//        archive.version = version
-//        try:
-//            archive.save(output)
-//        except Exception as e:
-//            print('Could not save archive file: {0}'.format(e), file=sys.stderr)
-//    elif arguments.delete:
-//        # Iterate over the given files to delete from the archive.
-//        for filename in arguments.files:
-//            try:
-//                archive.remove(filename)
-//            except Exception as e:
-//                print('Could not delete file {0} from archive: {1}'.format(filename, e), file=sys.stderr)
-//
-//        # Set version for saving, and save.
-//        archive.version = version
-//        try:
-//            archive.save(output)
-//        except Exception as e:
-//            print('Could not save archive file: {0}'.format(e), file=sys.stderr)
-//    elif arguments.extract:
-//        # Either extract the given files, or all files if no files are given.
-//        if len(arguments.files) > 0:
-//            files = arguments.files
-//        else:
-//            files = archive.list()
-//
-//        # Create output directory if not present.
-//        if not os.path.exists(output):
-//            os.makedirs(output)
-//
-//        # Iterate over files to extract.
-//        for filename in files:
-//            if filename.find('=') != -1:
-//                (outfile, filename) = filename.split('=', 2)
-//            else:
-//                outfile = filename
-//
-//            try:
-//                contents = archive.read(filename)
-//
-//                # Create output directory for file if not present.
-//                if not os.path.exists(os.path.dirname(os.path.join(output, outfile))):
-//                    os.makedirs(os.path.dirname(os.path.join(output, outfile)))
-//
-//                with open(os.path.join(output, outfile), 'wb') as file:
-//                    file.write(contents)
-//            except Exception as e:
-//                print('Could not extract file {0} from archive: {1}'.format(filename, e), file=sys.stderr)
-//    elif arguments.list:
-//        # Print the sorted file list.
-//        list = archive.list()
-//        list.sort()
-//        for file in list:
-//            print(file)
-//    else:
-//        print('No operation given :(')
-//        print('Use {0} --help for usage details.'.format(sys.argv[0]))
 
-}
+    /**
+     * Read several files from archive or internal storage, with the default gap threshold.
+     *
+     * @see #readAll(Collection, BiConsumer, long)
+     */
+    public void readAll(Collection<Path> filenames, BiConsumer<Path, ByteBuffer> consumer) throws IOException
+    {
+        readAll(filenames, consumer, DEFAULT_MAX_GAP);
+    }
 
+    /**
+     * Read several files from archive or internal storage, handing each one to the consumer as a read-only buffer.
+     * <p>
+     * Files are read in archive offset order, and files separated by at most {@code maxGap} bytes are read together
+     * in a single sequential read, the bytes in between being skipped. This turns many small random reads into a few
+     * large sequential ones, at the cost of reading the gaps. In memory-mapped mode, files are handed as slices of the
+     * mapping instead, as by {@link #slice(Path)}.
+     * <p>
+     * The buffer given to the consumer may be a view of an internal buffer reused for the next files, or a slice of the
+     * mapping: it is only valid during the call to the consumer and must be copied to be kept. Files found in the content cache are handed first,
+     * but files read by this method are not added to the cache.
+     *
+     * @param maxGap maximum number of unused bytes between two files read together, 0 to only merge adjacent files
+     */
+    public void readAll(Collection<Path> filenames, BiConsumer<Path, ByteBuffer> consumer, long maxGap) throws IOException
+    {
+        Objects.requireNonNull(consumer, "consumer cannot be null");
+        if (maxGap < 0) {
+            throw new IllegalArgumentException("maxGap cannot be negative: "+maxGap);
+        }
+
+        // Resolve everything first so that a missing file fails before any read.
+        List<Path> stored = new ArrayList<>();
+        List<Path> archived = new ArrayList<>(filenames.size());
+        List<List<IndexEntry>> entries = new ArrayList<>(filenames.size());
+        for (Path filename : filenames) {
+            if (files.containsKey(filename)) {
+                stored.add(filename);
+            }
+            else {
+                List<IndexEntry> parts = getIndexEntries(filename);
+                if (parts.isEmpty()) {
+                    // Nothing to read, and no offset to order it by.
+                    consumer.accept(filename, ByteBuffer.allocate(0).asReadOnlyBuffer());
+                    continue;
+                }
+                ByteBuffer cached = null;
+                if (contentCache != null) {
+                    cached = contentCache.getIfPresent(this, filename);
+                    metrics.cacheAccess(file, ArchiveMetrics.Cache.CONTENT, cached != null);
+                }
+                if (cached != null) {
+                    consumer.accept(filename, cached);
+                }
+                else {
+                    entries.add(parts);
+                    archived.add(filename);
+                }
+            }
+        }
+
+        Integer[] order = new Integer[archived.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> entries.get(i).get(0).offset));
+
+        verbosePrint("Reading "+archived.size()+" files from data file "+file+" in offset order...");
+        ByteBuffer buffer = null;
+        int runStart = 0;
+        long runOffset = 0, runEnd = 0;
+        for (int o = 0; o <= order.length; o++) {
+            List<IndexEntry> fileParts = o < order.length ? entries.get(order[o]) : null;
+            IndexEntry part = fileParts != null ? fileParts.get(0) : null;
+            boolean single = part != null && fileParts.size() == 1 && dataLength(part) <= MAX_COALESCED_READ && mappings == null;
+            long start = single ? part.offset : 0;
+            long end = single ? part.offset + dataLength(part) : 0;
+
+            // Read the pending run if this file cannot be added to it.
+            if (o > runStart && (!single || start > runEnd + maxGap || Math.max(end, runEnd) - runOffset > MAX_COALESCED_READ)) {
+                if (buffer == null) {
+                    buffer = ByteBuffer.allocate(MAX_COALESCED_READ);
+                }
+                int runLength = (int) (runEnd - runOffset);
+                int read = readFully(buffer.clear().limit(runLength), runOffset);
+                verbosePrint("Read "+(o - runStart)+" files in a single read (offset = "+runOffset+", length = "+runLength+" bytes)");
+                for (int r = runStart; r < o; r++) {
+                    IndexEntry runPart = entries.get(order[r]).get(0);
+                    int from = (int) Math.min(runPart.offset - runOffset, read);
+                    int to = (int) Math.min(runPart.offset + dataLength(runPart) - runOffset, read);
+                    ByteBuffer data = buffer.slice(from, to - from);
+                    if (runPart.prefix.length == 0) {
+                        consumer.accept(archived.get(order[r]), data.asReadOnlyBuffer());
+                    }
+                    else {
+                        byte[] content = new byte[runPart.prefix.length + data.remaining()];
+                        System.arraycopy(runPart.prefix, 0, content, 0, runPart.prefix.length);
+                        data.get(content, runPart.prefix.length, data.remaining());
+                        consumer.accept(archived.get(order[r]), ByteBuffer.wrap(content).asReadOnlyBuffer());
+                    }
+                }
+                runStart = o;
+            }
+
+            if (part == null) {
+                break;
+            }
+            if (!single) {
+                // Multi-part, too large, or mapped: no coalescing.
+                Path filename = archived.get(order[o]);
+                consumer.accept(filename, slice(filename));
+                runStart = o + 1;
+            }
+            else if (o == runStart) {
+                runOffset = start;
+                runEnd = end;
+            }
+            else {
+                runEnd = Math.max(runEnd, end);
+            }
+        }
+
+        for (Path filename : stored) {
+            consumer.accept(filename, slice(filename));
+        }
+    }
+
+    /**
+     * Extract files from archive and internal storage into a directory.
+     * Files are extracted in archive offset order by several workers, so that the archive is read mostly sequentially.
+     * A file that cannot be extracted does not stop the extraction, the error is reported in its result instead.
+     *
+     * @param options extraction options, or null for the default options
+     * @return the result of each file, in extraction order
+     */
+    public List<ExtractResult> extractAll(Path outputDir, ExtractOptions options) throws IOException
+    {
+        Objects.requireNonNull(outputDir, "outputDir cannot be null");
+        if (options == null) {
+            options = new ExtractOptions();
+        }
+
+        List<Path> filenames = new ArrayList<>(list().stream().filter(options.getFilter()).toList());
+        filenames.sort(Comparator.comparingLong(this::dataOffset));
+
+        // Resolve targets and create the output directories once, before starting the workers.
+        Path root = outputDir.toAbsolutePath().normalize();
+        Files.createDirectories(root);
+        Path[] targets = new Path[filenames.size()];
+        Set<Path> directories = new HashSet<>();
+        Map<Path, IOException> directoryErrors = new HashMap<>();
+        for (int i = 0; i < targets.length; i++) {
+            Path target = root.resolve(convertFilename(filenames.get(i))).normalize();
+            if (target.startsWith(root) && !target.equals(root)) {
+                targets[i] = target;
+                Path directory = target.getParent();
+                if (directories.add(directory)) {
+                    try {
+                        Files.createDirectories(directory);
+                    }
+                    catch (IOException e) {
+                        directoryErrors.put(directory, e);
+                    }
+                }
+            }
+        }
+
+        verbosePrint("Extracting "+filenames.size()+" files to "+root+"...");
+        ExtractOptions opts = options;
+        ExtractResult[] results = new ExtractResult[filenames.size()];
+        // Extraction errors are reported in the results, an exception from the progress callback ends the extraction.
+        runWorkers(results.length, options.getParallelism(), options.getExecutor(), () -> i -> {
+            results[i] = tryExtract(filenames.get(i), targets[i], directoryErrors, opts);
+            opts.getProgress().accept(results[i]);
+        });
+
+        return List.of(results);
+    }
+
+    /**
+     * Extract a single file for {@link #extractAll(Path, ExtractOptions)}.
+     */
+    private ExtractResult tryExtract(Path filename, Path target, Map<Path, IOException> directoryErrors, ExtractOptions options)
+    {
+        try {
+            if (target == null) {
+                throw new IOException("File "+filename+" would be extracted outside of the output directory");
+            }
+            IOException directoryError = directoryErrors.get(target.getParent());
+            if (directoryError != null) {
+                throw directoryError;
+            }
+
+            long size = options.isOverwrite() ? extract(filename, target) : extract(filename, target, StandardOpenOption.CREATE_NEW);
+            return new ExtractResult(filename, target, size, null);
+        }
+        catch (Exception e) {
+            return new ExtractResult(filename, target, 0, e);
+        }
+    }
+
+    /**
+     * Extract a file from archive or internal storage to the given target.
+     * Archive data is transferred straight from the archive file to the target file ({@link FileChannel#transferTo}),
+     * without going through the heap, only the prefix is written from memory.
+     *
+     * @param openOptions options specifying how the target is opened, as for {@link Files#write(Path, byte[], OpenOption...)}
+     * @return the number of bytes written
+     */
+    public long extract(Path filename, Path target, OpenOption... openOptions) throws IOException
+    {
+        Set<OpenOption> options = new HashSet<>(List.of(openOptions));
+        if (options.isEmpty()) {
+            options.add(StandardOpenOption.CREATE);
+            options.add(StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        options.add(StandardOpenOption.WRITE);
+
+        if (!hasFile(filename)) {
+            throw new NoSuchElementException("The requested file "+filename+" does not exist in the given Ren'Py archive");
+        }
+        long start = System.nanoTime();
+        ArchiveEvents.Extract event = new ArchiveEvents.Extract();
+        event.begin();
+        long size;
+        try (FileChannel out = FileChannel.open(target, options))
+        {
+            verbosePrint("Extracting file "+filename+" to "+target+"...");
+            size = writeContent(filename, out);
+        }
+        event.complete(file, filename, target, size);
+        metrics.operationCompleted(file, ArchiveMetrics.Operation.EXTRACT, size, System.nanoTime() - start);
+        return size;
+    }
+
+    /**
+     * Verify the files of the opened archive, without computing digests.
+     *
+     * @see #verify(VerifyOptions)
+     */
+    public VerifyReport verify() throws IOException
+    {
+        return verify(new VerifyOptions());
+    }
+
+    /**
+     * Verify the files of the opened archive and compute the digests of their contents with the given algorithm.
+     *
+     * @see #verify(VerifyOptions)
+     */
+    public VerifyReport digest(String algorithm) throws IOException
+    {
+        return verify(new VerifyOptions().digest(algorithm));
+    }
+
+    /**
+     * Verify the files of the opened archive: that their data lies between the header and the index, that it does
+     * not partially overlap the data of another file, and that it can be read entirely. Files of internal storage are
+     * not verified.
+     * <p>
+     * Files are read in the order of their data by several workers, each one with its own buffer and digest.
+     */
+    public VerifyReport verify(VerifyOptions options) throws IOException
+    {
+        if (options == null) {
+            options = new VerifyOptions();
+        }
+        ArchiveIndex index = this.index;
+        if (handle == null) {
+            return new VerifyReport(options.getDigestAlgorithm(), 0, 0, List.of());
+        }
+
+        int[] ids = idsByOffset();
+        long[] dataArea = dataArea();
+        List<Set<VerifyResult.Issue>> issues = checkRanges(index, ids, dataArea[0], dataArea[1]);
+
+        verbosePrint("Verifying "+ids.length+" files...");
+        String algorithm = options.getDigestAlgorithm();
+        VerifyResult[] results = new VerifyResult[ids.length];
+        runWorkers(results.length, options.getParallelism(), options.getExecutor(), () -> {
+            ByteBuffer buffer = ByteBuffer.allocate(VERIFY_BUFFER_SIZE);
+            MessageDigest digest;
+            try {
+                digest = algorithm != null ? MessageDigest.getInstance(algorithm) : null;
+            }
+            catch (NoSuchAlgorithmException e) {
+                // Checked by the options.
+                throw new IllegalStateException(e);
+            }
+            return i -> results[i] = verifyFile(index, ids[i], issues.get(i), buffer, digest);
+        });
+
+        return new VerifyReport(algorithm, dataArea[0], dataArea[1], List.of(results));
+    }
+
+    /**
+     * Data area of the opened archive: from the end of the header to the index, or the whole file for archives
+     * without header.
+     */
+    private long[] dataArea() throws IOException
+    {
+        long size = handle.size();
+        if (!List.of(Version.V2, Version.V3, Version.V3_2).contains(loadedVersion)) {
+            return new long[] {0, size};
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(256);
+        readFully(handle, header, 0);
+        String metadata = new String(header.array(), 0, header.position(), StandardCharsets.UTF_8);
+        int headerEnd = metadata.indexOf('\n');
+        if (headerEnd < 0) {
+            throw new IOException("Invalid archive header");
+        }
+        long indexOffset = Long.parseLong(metadata.substring(0, headerEnd).split("\\s")[1], 16);
+        return new long[] {headerEnd + 1, Math.min(indexOffset, size)};
+    }
+
+    /**
+     * Check the bounds of the parts of the given files, and that they do not partially overlap.
+     *
+     * @return the issues of each file
+     */
+    private static List<Set<VerifyResult.Issue>> checkRanges(ArchiveIndex index, int[] ids, long dataStart, long dataEnd)
+    {
+        List<Set<VerifyResult.Issue>> issues = new ArrayList<>(ids.length);
+        // Parts with data, as their file position in ids and their range.
+        List<long[]> parts = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            Set<VerifyResult.Issue> fileIssues = EnumSet.noneOf(VerifyResult.Issue.class);
+            issues.add(fileIssues);
+            for (IndexEntry part : index.parts(ids[i])) {
+                long length = dataLength(part);
+                if (part.offset < dataStart || part.offset > dataEnd - length) {
+                    fileIssues.add(VerifyResult.Issue.OUT_OF_BOUNDS);
+                }
+                if (length > 0) {
+                    parts.add(new long[] {i, part.offset, part.offset + length});
+                }
+            }
+        }
+
+        parts.sort(Comparator.<long[]>comparingLong(part -> part[1]).thenComparingLong(part -> part[2]));
+        long[] previous = null;
+        long[] furthest = null;
+        for (long[] part : parts) {
+            boolean shared = previous != null && previous[1] == part[1] && previous[2] == part[2];
+            if (!shared && furthest != null && part[1] < furthest[2]) {
+                issues.get((int) part[0]).add(VerifyResult.Issue.OVERLAPPING);
+                issues.get((int) furthest[0]).add(VerifyResult.Issue.OVERLAPPING);
+            }
+            if (furthest == null || part[2] > furthest[2]) {
+                furthest = part;
+            }
+            previous = part;
+        }
+        return issues;
+    }
+
+    /**
+     * Read a file of the opened archive entirely, for {@link #verify(VerifyOptions)}.
+     *
+     * @param digest the digest to compute, or null
+     */
+    private VerifyResult verifyFile(ArchiveIndex index, int id, Set<VerifyResult.Issue> issues, ByteBuffer buffer, MessageDigest digest)
+    {
+        Path filename = index.path(id);
+        long size = index.size(id);
+        if (digest != null) {
+            digest.reset();
+        }
+        try {
+            for (IndexEntry part : index.parts(id)) {
+                if (digest != null) {
+                    digest.update(part.prefix);
+                }
+                long position = part.offset;
+                long remaining = dataLength(part);
+                while (remaining > 0) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                    int read = readFully(handle, buffer, position);
+                    if (read < buffer.limit()) {
+                        throw new EOFException("Unexpected end of archive at "+(position + read)+" while reading "+filename);
+                    }
+                    if (digest != null) {
+                        digest.update(buffer.flip());
+                    }
+                    position += read;
+                    remaining -= read;
+                }
+            }
+        }
+        catch (IOException e) {
+            issues.add(VerifyResult.Issue.UNREADABLE);
+            return new VerifyResult(filename, size, Collections.unmodifiableSet(issues), null, e);
+        }
+        return new VerifyResult(filename, size, Collections.unmodifiableSet(issues), digest == null ? null : digest.digest(), null);
+    }
+
+    /**
+     * Read file from archive or internal storage asynchronously, on a virtual thread.
+     *
+     * @see #readAsync(Path, Executor)
+     */
+    public CompletableFuture<byte[]> readAsync(Path filename)
+    {
+        return readAsync(filename, ASYNC_EXECUTOR);
+    }
+
+    /**
+     * Read file from archive or internal storage asynchronously, as {@link #read(Path)}, on the given executor.
+     * Reads use the same positional reads as the blocking API, so any number of them can run at once.
+     *
+     * @return a future completed with the file content, or completed exceptionally with the error thrown by
+     * {@link #read(Path)}
+     */
+    public CompletableFuture<byte[]> readAsync(Path filename, Executor executor)
+    {
+        return async(() -> read(filename), executor);
+    }
+
+    /**
+     * Extract a file from archive or internal storage asynchronously, on a virtual thread.
+     *
+     * @see #extractAsync(Path, Path, Executor, OpenOption...)
+     */
+    public CompletableFuture<Long> extractAsync(Path filename, Path target, OpenOption... openOptions)
+    {
+        return extractAsync(filename, target, ASYNC_EXECUTOR, openOptions);
+    }
+
+    /**
+     * Extract a file from archive or internal storage asynchronously, as {@link #extract(Path, Path, OpenOption...)},
+     * on the given executor.
+     *
+     * @return a future completed with the number of bytes written
+     */
+    public CompletableFuture<Long> extractAsync(Path filename, Path target, Executor executor, OpenOption... openOptions)
+    {
+        return async(() -> extract(filename, target, openOptions), executor);
+    }
+
+    /**
+     * Save current state asynchronously, on a virtual thread.
+     *
+     * @see #saveAsync(Path, Executor)
+     */
+    public CompletableFuture<Void> saveAsync(Path filename)
+    {
+        return saveAsync(filename, ASYNC_EXECUTOR);
+    }
+
+    /**
+     * Save current state asynchronously, as {@link #save(Path)}, on the given executor. As for the blocking call, no
+     * other operation must be done on the archive until the returned future is completed.
+     */
+    public CompletableFuture<Void> saveAsync(Path filename, Executor executor)
+    {
+        return async(() -> {
+            save(filename);
+            return null;
+        }, executor);
+    }
+
+    /**
+     * Processing of the items of {@link #runWorkers}, by index.
+     */
+    interface ItemProcessor
+    {
+        void process(int item) throws IOException;
+    }
+
+    /**
+     * Process the items 0 to {@code nbItems - 1} with {@code parallelism} workers, each one taking the next item in
+     * order once done with the previous one. Each worker gets its own processor from the factory, called on the
+     * worker thread, so that it can hold per-worker state such as buffers.
+     * <p>
+     * The first exception thrown by a processor stops all the workers and is rethrown once they are done.
+     *
+     * @param executor executor running the workers, or null to run them on a pool of {@code parallelism} platform
+     *                 threads created for the call
+     */
+    static void runWorkers(int nbItems, int parallelism, Executor executor, Supplier<ItemProcessor> processors) throws IOException
+    {
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            ItemProcessor processor = processors.get();
+            int i;
+            while ((i = next.getAndIncrement()) < nbItems) {
+                try {
+                    processor.process(i);
+                }
+                catch (IOException e) {
+                    next.set(nbItems);
+                    throw new UncheckedIOException(e);
+                }
+                catch (RuntimeException | Error e) {
+                    next.set(nbItems);
+                    throw e;
+                }
+            }
+        };
+
+        withExecutor(executor, parallelism, workerExecutor -> {
+            try {
+                int nbWorkers = Math.min(parallelism, nbItems);
+                CompletableFuture<?>[] workers = new CompletableFuture<?>[nbWorkers];
+                for (int w = 0; w < nbWorkers; w++) {
+                    workers[w] = CompletableFuture.runAsync(worker, workerExecutor);
+                }
+                CompletableFuture.allOf(workers).join();
+            }
+            catch (CompletionException e) {
+                switch (e.getCause()) {
+                    case UncheckedIOException cause -> throw cause.getCause();
+                    case RuntimeException cause -> throw cause;
+                    case Error cause -> throw cause;
+                    case null, default -> throw e;
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Operation run by {@link #withExecutor} on the executor of its workers.
+     */
+    interface ExecutorTask<T>
+    {
+        T run(Executor executor) throws IOException;
+    }
+
+    /**
+     * Run an operation on the given executor, or on a pool of {@code parallelism} platform threads created for the
+     * operation if it is null.
+     * <p>
+     * The pool is shut down once the operation is done, but its threads are not interrupted: interrupting a thread
+     * reading a {@link FileChannel} closes the channel, which may be the handle of an archive.
+     */
+    static <T> T withExecutor(Executor executor, int parallelism, ExecutorTask<T> task) throws IOException
+    {
+        if (executor != null) {
+            return task.run(executor);
+        }
+        ExecutorService ownExecutor = Executors.newFixedThreadPool(parallelism);
+        try {
+            return task.run(ownExecutor);
+        }
+        finally {
+            ownExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Run a task on the given executor. Unlike {@link CompletableFuture#supplyAsync}, checked exceptions complete the
+     * future as is, so they can be handled with {@link nigloo.tool.Utils#observe} or {@link CompletableFuture#exceptionally}
+     * without unwrapping.
+     */
+    private static <T> CompletableFuture<T> async(IOSupplier<T> task, Executor executor)
+    {
+        Objects.requireNonNull(executor, "executor cannot be null");
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(task.get());
+                }
+                catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Write a file from archive or internal storage at the current position of the given channel.
+     * Archive data and files added from a path are transferred channel to channel.
+     *
+     * @return the number of bytes written
+     */
+    private long writeContent(Path filename, FileChannel out) throws IOException
+    {
+        StoredFile stored = files.get(filename);
+        if (stored == null)
+        {
+            long total = 0;
+            for (IndexEntry part : getIndexEntries(filename)) {
+                writeFully(out, ByteBuffer.wrap(part.prefix));
+                long dataLength = dataLength(part);
+                long transferred = transferFully(part.offset, dataLength, out);
+                total += part.prefix.length + transferred;
+                if (transferred != dataLength) {
+                    // Truncated archive.
+                    break;
+                }
+            }
+            return total;
+        }
+
+        switch (stored) {
+            case StoredBytes bytes -> {
+                writeFully(out, ByteBuffer.wrap(bytes.content));
+                return bytes.content.length;
+            }
+            case StoredPath path -> {
+                try (FileChannel in = FileChannel.open(path.source, StandardOpenOption.READ)) {
+                    long size = in.size();
+                    long total = 0;
+                    while (total < size) {
+                        long transferred = in.transferTo(total, size - total, out);
+                        if (transferred <= 0) {
+                            break;
+                        }
+                        total += transferred;
+                    }
+                    return total;
+                }
+            }
+            case StoredSource source -> {
+                try (InputStream in = source.source.open()) {
+                    OutputStream os = Channels.newOutputStream(out);
+                    return in.transferTo(os);
+                }
+            }
+        }
+    }
+
+    /**
+     * Offset of a file data in the opened archive. Files from internal storage are considered after all archive files.
+     */
+    long dataOffset(Path filename)
+    {
+        int id = files.containsKey(filename) ? -1 : index.find(filename);
+        return id < 0 ? Long.MAX_VALUE : index.offset(id);
+    }
+
+    /**
+     * Ids of the files in the index, in archive offset order.
+     */
+    private int[] idsByOffset()
+    {
+        ArchiveIndex index = this.index;
+        return Arrays.stream(index.ids()).boxed()
+                     .sorted(Comparator.comparingLong(index::offset))
+                     .mapToInt(Integer::intValue)
+                     .toArray();
+    }
+
+    /**
+     * Get the index entries of a file from the opened archive, one for each part of the file.
+     */
+    private List<IndexEntry> getIndexEntries(Path filename)
+    {
+        // Check if the file exists in our indexes.
+        int id = index.find(filename);
+        if (id < 0) {
+            throw new NoSuchElementException("The requested file "+filename+" does not exist in the given Ren'Py archive");
+        }
+
+        // If it's in our opened archive index, and our archive handle isn't valid, something is obviously wrong.
+        if (handle == null) {
+            throw new NoSuchElementException("The requested file "+filename+" does not exist in the given Ren'Py archive");
+        }
+
+        return index.parts(id);
+    }
+
+    /**
+     * Size of a file from the opened archive: the sum of its parts, each made of its prefix followed by its data.
+     */
+    private static long entrySize(List<IndexEntry> parts)
+    {
+        long size = 0;
+        for (IndexEntry part : parts) {
+            size += part.prefix.length + dataLength(part);
+        }
+        return size;
+    }
+
+    /**
+     * Offset of the first part of a file from the opened archive, for messages.
+     */
+    private static String firstOffset(List<IndexEntry> parts)
+    {
+        return parts.isEmpty() ? "none" : Long.toString(parts.get(0).offset);
+    }
+
+    /**
+     * Length of the data of a part in the archive, the prefix being counted in the part length.
+     */
+    private static long dataLength(IndexEntry part)
+    {
+        return Math.max(0, part.length - part.prefix.length);
+    }
+
+    /**
+     * Transfer a range of the opened archive to the given channel, until the range is transferred or the end of the
+     * archive is reached.
+     *
+     * @return the number of bytes transferred
+     */
+    private long transferFully(long position, long count, WritableByteChannel target) throws IOException
+    {
+        long total = 0;
+        while (total < count) {
+            long transferred = handle.transferTo(position + total, count - total, target);
+            if (transferred <= 0 && position + total >= handle.size()) {
+                break;
+            }
+            total += transferred;
+        }
+        metrics.positionalRead(file, total);
+        return total;
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer src) throws IOException
+    {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    /**
+     * Read from the opened archive at the given position until the buffer is full or the end of the archive is
+     * reached. The shared archive channel position is not used, so this can be called from several threads at once.
+     *
+     * @return the number of bytes read
+     */
+    private int readFully(ByteBuffer dst, long position) throws IOException
+    {
+        int read = readFully(handle, dst, position);
+        metrics.positionalRead(file, read);
+        return read;
+    }
+
+    static int readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException
+    {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Get a read-only view of the given range of the archive mapping, or null if the archive is not mapped or if the
+     * range does not fit in a single mapping window.
+     */
+    private ByteBuffer mappedRange(long offset, long length)
+    {
+        if (mappings == null || offset < 0 || length < 0) {
+            return null;
+        }
+
+        long window = offset / MAP_WINDOW;
+        if (window >= mappings.length) {
+            return null;
+        }
+        MappedByteBuffer mapping = mappings[(int) window];
+        long start = offset - window * MAP_WINDOW;
+        if (start + length > mapping.capacity()) {
+            return null;
+        }
+        return mapping.slice((int) start, (int) length);
+    }
+
+    /**
+     * Map the opened archive in overlapping windows.
+     */
+    private MappedByteBuffer[] mapArchive() throws IOException
+    {
+        long size = handle.size();
+        int nbWindows = (int) Math.max(1, (size + MAP_WINDOW - 1) / MAP_WINDOW);
+        MappedByteBuffer[] mappings = new MappedByteBuffer[nbWindows];
+        for (int i = 0; i < nbWindows; i++) {
+            long start = i * MAP_WINDOW;
+            long length = Math.min(MAP_WINDOW + MAP_OVERLAP, size - start);
+            mappings[i] = handle.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+        verbosePrint("Mapped data file "+file+" in "+nbWindows+" window(s)");
+        return mappings;
+    }
+    
+
+    /**
+     * Modify a file in archive or internal storage.
+     */
+    public void change(Path filename, byte[] content)
+    {
+         // Our 'change' is basically removing the file from our indexes first, and then re-adding it.
+        remove(filename);
+        add(filename, content);
+    }
+
+
+    /**
+     * Add a file to the internal storage.
+     */
+    public void add(Path filename, byte[] content) {
+        checkNotExists(filename);
+        verbosePrint("Adding file "+filename+" to archive... (length = "+content.length+" bytes)");
+        files.put(filename, new StoredBytes(content));
+    }
+
+    /**
+     * Add a file to the internal storage, its content is read from the given source file only when needed.
+     */
+    public void add(Path filename, Path source) {
+        checkNotExists(filename);
+        verbosePrint("Adding file "+filename+" to archive... (source = "+source+")");
+        files.put(filename, new StoredPath(source));
+    }
+
+    /**
+     * Add a file to the internal storage, its content is read from the given source only when needed.
+     */
+    public void add(Path filename, ContentSource source) {
+        checkNotExists(filename);
+        verbosePrint("Adding file "+filename+" to archive...");
+        files.put(filename, new StoredSource(source));
+    }
+
+    private void checkNotExists(Path filename) {
+        if (hasFile(filename)) {
+            throw new IllegalArgumentException("File "+filename+" already exists in archive");
+        }
+    }
+
+
+    /**
+     * Remove a file from archive or internal storage.
+     */
+    public void remove(Path filename) {
+        ArchiveIndex index = this.index;
+        ArchiveIndex updated;
+        if (files.containsKey(filename))
+        {
+            verbosePrint("Removing file "+filename+" from internal storage...");
+            files.remove(filename);
+        }
+        else if ((updated = index.withRemoved(filename)) != index)
+        {
+            this.index = updated;
+            verbosePrint("Removing file "+filename+" from archive indexes...");
+            if (contentCache != null) {
+                contentCache.invalidate(this, filename);
+            }
+        }
+        else
+        {
+            throw new NoSuchElementException("The requested file "+filename+" does not exist in this archive");
+        }
+    }
+
+    /**
+     * Load archive.
+     *
+     * @throws IOException if the archive has an interrupted compaction, see {@link #resumeCompaction(Path)}
+     */
+    private void load(Path file) throws IOException
+    {
+        if (contentCache != null) {
+            contentCache.invalidateAll(this);
+        }
+        mappings = null;
+        if (handle != null) {
+            handle.close();
+        }
+        this.file = file;
+        files = new ConcurrentHashMap<>();
+        if (Files.exists(Compactor.journalFile(file))) {
+            throw new IOException("The compaction of "+file+" was interrupted, resume it first with "
+                                  +"RenPyArchive.resumeCompaction (rpatool --resume)");
+        }
+
+        long start = System.nanoTime();
+        ArchiveEvents.Load event = new ArchiveEvents.Load();
+        event.begin();
+        handle = FileChannel.open(file, StandardOpenOption.READ);
+        version = loadedVersion = readVersion();
+        index = indexCache == null ? extractIndexes() : extractCachedIndexes();
+        if (memoryMapped) {
+            mappings = mapArchive();
+        }
+        long size = handle.size();
+        event.complete(file, index.size(), size);
+        metrics.operationCompleted(file, ArchiveMetrics.Operation.LOAD, size, System.nanoTime() - start);
+    }
+
+    /**
+     * Save current state into a new file, merging archive and internal storage, rebuilding indexes, and optionally saving in another format version.
+     * The archive is written as a stream: files from the current archive are transferred channel to channel and added
+     * files are copied from their source, so only the indexes are kept in memory.
+     */
+    public void save(Path filename) throws IOException
+    {
+        save(filename, new SaveOptions());
+    }
+
+    /**
+     * Save current state into a new file, as {@link #save(Path)}, optionally deduplicating file contents.
+     *
+     * @see SaveOptions#deduplicate(boolean)
+     */
+    public void save(Path filename, boolean deduplicate) throws IOException
+    {
+        save(filename, new SaveOptions().deduplicate(deduplicate));
+    }
+
+    /**
+     * Save current state into a new file, as {@link #save(Path)}.
+     * <p>
+     * Files are prepared by several workers: padding is generated and small files are read in memory (and hashed when
+     * deduplicating), while the calling thread writes them in order through a large buffer, assigning their offsets.
+     * Large files are still transferred channel to channel by the writer. When deduplicating, contents are compared by
+     * CRC32C and length, then byte by byte when they match.
+     * <p>
+     * In memory-mapped mode, the archive cannot be saved over its own file once a slice of its mapping has been
+     * returned, see {@link #slice(Path)}.
+     *
+     * @param options save options, or null for the default options
+     */
+    public void save(Path filename, SaveOptions options) throws IOException
+    {
+        if (filename == null) {
+            filename = this.file;
+        }
+        if (filename == null) {
+            throw new IllegalArgumentException("No target file found for saving archive");
+        }
+        if (!List.of(Version.V2, Version.V3).contains(version)) {
+            throw new IllegalStateException("Saving is only supported for version 2 and 3 archives");
+        }
+        checkMappingNotShared(filename, "replaced");
+        if (options == null) {
+            options = new SaveOptions();
+        }
+
+        long start = System.nanoTime();
+        ArchiveEvents.Save event = new ArchiveEvents.Save();
+        event.begin();
+        int nbFiles;
+        long size;
+        // The target may be the current archive, write to a temporary file next to it and replace it at the end.
+        Path target = filename.toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try (FileChannel archive = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            // Predict header length, we'll write that one last.
+            long offset = headerLength();
+            archive.position(offset);
+
+            verbosePrint("Writing files to archive file...");
+            // Files from the current archive first, in offset order so that it is read sequentially.
+            List<Path> filenames = new ArrayList<>(index.size() + files.size());
+            for (int id : idsByOffset()) {
+                filenames.add(index.path(id));
+            }
+            filenames.addAll(this.files.keySet());
+            // Build our own indexes while writing files to the archive.
+            try (IndexEncoder indexes = new IndexEncoder(indexKey()))
+            {
+                offset = writeFiles(filenames, archive, indexes, options);
+
+                // Write the indexes.
+                verbosePrint("Writing archive index to archive file...");
+                writeFully(archive, indexes.finish());
+            }
+            // Drop the end of a duplicate written last, if any.
+            archive.truncate(archive.position());
+            // Now write the header.
+            writeHeader(offset, archive);
+            nbFiles = filenames.size();
+            size = archive.size();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        // Replace the target and reload the file in our inner database.
+        close();
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        event.complete(filename, nbFiles, size, false);
+        metrics.operationCompleted(filename, ArchiveMetrics.Operation.SAVE, size, System.nanoTime() - start);
+        load(filename);
+    }
+
+    /**
+     * A file prepared to be written: its padding and, unless it is transferred channel to channel, its content and
+     * the hash of its content (-1 if not computed).
+     */
+    private record Payload(byte[] padding, byte[] content, long hash) {}
+
+    private record PayloadKey(long hash, long length) {}
+
+    /**
+     * Write files at the current position of the given archive, adding their entries to the given indexes as their
+     * offsets are assigned.
+     * Files are prepared by workers ahead of the writer, up to a few times the parallelism.
+     *
+     * @return the offset following the last written file
+     */
+    private long writeFiles(List<Path> filenames, FileChannel archive, IndexEncoder indexes, SaveOptions options) throws IOException
+    {
+        return withExecutor(options.getExecutor(), options.getParallelism(),
+                            executor -> writeFiles(filenames, archive, indexes, options, executor));
+    }
+
+    private long writeFiles(List<Path> filenames, FileChannel archive, IndexEncoder indexes, SaveOptions options,
+                            Executor executor) throws IOException
+    {
+        boolean deduplicate = options.isDeduplicate();
+        // Content hash and length -> offsets of the contents already written
+        Map<PayloadKey, List<Long>> payloads = new HashMap<>();
+        int nbDuplicates = 0;
+        long duplicatedSize = 0;
+
+        int window = options.getParallelism() * 4;
+        ArrayDeque<CompletableFuture<Payload>> pending = new ArrayDeque<>(window);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        long offset = archive.position();
+        int next = 0;
+        for (Path file : filenames)
+        {
+            while (next < filenames.size() && pending.size() < window) {
+                Path toPrepare = filenames.get(next++);
+                pending.add(async(() -> preparePayload(toPrepare, deduplicate), executor));
+            }
+            Payload payload = await(pending.poll());
+
+            long entryStart = offset;
+            String name = convertFilename(file);
+            if (payload.content != null)
+            {
+                long length = payload.content.length;
+                if (deduplicate && length > 0) {
+                    PayloadKey key = new PayloadKey(payload.hash, length);
+                    List<Long> candidates = payloads.computeIfAbsent(key, k -> new ArrayList<>(1));
+                    if (!candidates.isEmpty()) {
+                        // The candidates may still be in the buffer.
+                        flushBuffer(buffer, archive);
+                    }
+                    long existing = -1;
+                    for (long candidate : candidates) {
+                        if (contentEquals(archive, candidate, payload.content)) {
+                            existing = candidate;
+                            break;
+                        }
+                    }
+                    if (existing >= 0) {
+                        indexes.addFile(name, existing, length);
+                        nbDuplicates++;
+                        duplicatedSize += length;
+                        options.getProgress().accept(file, length);
+                        continue;
+                    }
+                    candidates.add(offset + payload.padding.length);
+                }
+
+                bufferedWrite(buffer, archive, payload.padding);
+                offset += payload.padding.length;
+                bufferedWrite(buffer, archive, payload.content);
+                indexes.addFile(name, offset, length);
+                offset += length;
+                options.getProgress().accept(file, length);
+            }
+            else
+            {
+                bufferedWrite(buffer, archive, payload.padding);
+                offset += payload.padding.length;
+                flushBuffer(buffer, archive);
+
+                long length = writeContent(file, archive);
+                if (deduplicate && length > 0) {
+                    long existing = findPayload(archive, payloads, offset, length);
+                    if (existing >= 0) {
+                        // Drop what was just written, including the padding, and reuse the existing content.
+                        archive.position(entryStart);
+                        offset = entryStart;
+                        indexes.addFile(name, existing, length);
+                        nbDuplicates++;
+                        duplicatedSize += length;
+                        options.getProgress().accept(file, length);
+                        continue;
+                    }
+                }
+                indexes.addFile(name, offset, length);
+                offset += length;
+                options.getProgress().accept(file, length);
+            }
+        }
+        flushBuffer(buffer, archive);
+
+        if (deduplicate) {
+            verbosePrint("Deduplicated "+nbDuplicates+" files ("+duplicatedSize+" bytes)");
+        }
+        return offset;
+    }
+
+    /**
+     * Prepare a file to be written, from a worker thread. Small files are read in memory, larger ones and files from
+     * a {@link ContentSource} are left to be transferred by the writer.
+     */
+    private Payload preparePayload(Path filename, boolean deduplicate) throws IOException
+    {
+        byte[] padding = this.padlength > 0 ? generatePadding() : new byte[0];
+
+        StoredFile stored = files.get(filename);
+        byte[] content = switch (stored) {
+            case null -> entrySize(getIndexEntries(filename)) <= STAGE_LIMIT ? readArchived(filename) : null;
+            case StoredBytes bytes -> bytes.content;
+            case StoredPath path -> Files.size(path.source) <= STAGE_LIMIT ? Files.readAllBytes(path.source) : null;
+            case StoredSource source -> null;
+        };
+
+        long hash = -1;
+        if (deduplicate && content != null) {
+            CRC32C crc = new CRC32C();
+            crc.update(content);
+            hash = crc.getValue();
+        }
+        return new Payload(padding, content, hash);
+    }
+
+    /**
+     * Wait for a payload, rethrowing the error of its preparation.
+     */
+    private static Payload await(CompletableFuture<Payload> payload) throws IOException
+    {
+        try {
+            return payload.join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioe) {
+                throw ioe;
+            }
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Write bytes through the given buffer, flushing it to the channel each time it is full.
+     */
+    private static void bufferedWrite(ByteBuffer buffer, FileChannel out, byte[] bytes) throws IOException
+    {
+        int position = 0;
+        while (position < bytes.length) {
+            int n = Math.min(buffer.remaining(), bytes.length - position);
+            buffer.put(bytes, position, n);
+            position += n;
+            if (!buffer.hasRemaining()) {
+                flushBuffer(buffer, out);
+            }
+        }
+    }
+
+    private static void flushBuffer(ByteBuffer buffer, FileChannel out) throws IOException
+    {
+        writeFully(out, buffer.flip());
+        buffer.clear();
+    }
+
+    /**
+     * Look for a content already written to the given archive identical to the one just written at the given range.
+     * If there is none, the range is registered as a new content.
+     *
+     * @return the offset of the identical content, or -1 if none
+     */
+    private static long findPayload(FileChannel archive, Map<PayloadKey, List<Long>> payloads, long offset, long length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, 1 << 16));
+        CRC32C crc = new CRC32C();
+        for (long position = 0; position < length; position += buffer.capacity()) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+            if (readFully(archive, buffer, offset + position) != buffer.limit()) {
+                throw new EOFException("Unexpected end of archive file");
+            }
+            crc.update(buffer.flip());
+        }
+
+        List<Long> candidates = payloads.computeIfAbsent(new PayloadKey(crc.getValue(), length), key -> new ArrayList<>(1));
+        for (long candidate : candidates) {
+            if (rangeEquals(archive, candidate, offset, length)) {
+                return candidate;
+            }
+        }
+        candidates.add(offset);
+        return -1;
+    }
+
+    /**
+     * Compare two ranges of the same length of a file.
+     */
+    private static boolean rangeEquals(FileChannel channel, long offset1, long offset2, long length) throws IOException
+    {
+        int bufferSize = (int) Math.min(length, 1 << 16);
+        ByteBuffer buffer1 = ByteBuffer.allocate(bufferSize);
+        ByteBuffer buffer2 = ByteBuffer.allocate(bufferSize);
+        for (long position = 0; position < length; position += bufferSize) {
+            int size = (int) Math.min(bufferSize, length - position);
+            if (readFully(channel, buffer1.clear().limit(size), offset1 + position) != size
+                || readFully(channel, buffer2.clear().limit(size), offset2 + position) != size
+                || !buffer1.flip().equals(buffer2.flip())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compare a range of a file with the given content.
+     */
+    private static boolean contentEquals(FileChannel channel, long offset, byte[] content) throws IOException
+    {
+        int bufferSize = Math.min(content.length, 1 << 16);
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        for (int position = 0; position < content.length; position += bufferSize) {
+            int size = Math.min(bufferSize, content.length - position);
+            if (readFully(channel, buffer.clear().limit(size), offset + position) != size
+                || !buffer.flip().equals(ByteBuffer.wrap(content, position, size))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Save current state into the loaded archive file without rewriting it: files from internal storage are appended
+     * at the end of the archive, followed by a new index, then the header is updated to point to the new index.
+     * Data of removed or changed files, as well as the previous index, are left in the archive as dead space, see
+     * {@link #compact()}.
+     * <p>
+     * The header is only updated once everything else is written, so the archive stays valid if the operation is
+     * interrupted.
+     */
+    public void appendSave() throws IOException
+    {
+        appendSave(new SaveOptions());
+    }
+
+    /**
+     * Save current state into the loaded archive file without rewriting it, as {@link #appendSave()}.
+     */
+    public void appendSave(SaveOptions options) throws IOException
+    {
+        if (options == null) {
+            options = new SaveOptions();
+        }
+        if (file == null) {
+            throw new IllegalStateException("No archive file loaded, use save instead");
+        }
+        if (!List.of(Version.V2, Version.V3).contains(version)) {
+            throw new IllegalStateException("Saving is only supported for version 2 and 3 archives");
+        }
+        if (!version.equals(loadedVersion)) {
+            throw new IllegalStateException("The archive version cannot be changed in place, use save instead");
+        }
+
+        long start = System.nanoTime();
+        ArchiveEvents.Save event = new ArchiveEvents.Save();
+        event.begin();
+        int nbFiles = files.size();
+        long size;
+        // Deduplicating reads back the data already appended.
+        try (FileChannel archive = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             IndexEncoder indexes = new IndexEncoder(indexKey()))
+        {
+            long initialSize = archive.size();
+            // Keep the index of the files already in the archive, their data does not move.
+            for (int id : index.ids()) {
+                indexes.addFile(index.name(id), index.parts(id));
+            }
+
+            archive.position(archive.size());
+            verbosePrint("Appending "+files.size()+" files to archive file...");
+            long offset = writeFiles(new ArrayList<>(files.keySet()), archive, indexes, options);
+
+            verbosePrint("Writing archive index to archive file...");
+            writeFully(archive, indexes.finish());
+            // Make sure everything is on disk before pointing the header to the new index.
+            archive.force(false);
+            writeHeader(offset, archive);
+            archive.force(false);
+            size = archive.size() - initialSize;
+        }
+
+        event.complete(file, nbFiles, size, true);
+        metrics.operationCompleted(file, ArchiveMetrics.Operation.SAVE, size, System.nanoTime() - start);
+        load(file);
+    }
+
+    /**
+     * Reclaim the dead space of the opened archive in place: removed files, padding and the indexes left by
+     * {@link #appendSave()}. The live data is moved down over the dead ranges in chunks of a few megabytes, a new
+     * index is written after it, then the header is updated and the file truncated. Files of internal storage are
+     * then appended with {@link #appendSave()}.
+     * <p>
+     * The archive is closed while the data is moved, then loaded again: it must not be used by other threads during
+     * the compaction, and cannot be used at all if the compaction fails. In memory-mapped mode, the archive cannot be
+     * compacted once a slice of its mapping has been returned, see {@link #slice(Path)}.
+     * <p>
+     * The compaction is journaled in a file next to the archive: if it is interrupted, the archive cannot be loaded
+     * until the compaction is finished with {@link #resumeCompaction(Path)}.
+     */
+    public void compact() throws IOException
+    {
+        if (file == null) {
+            throw new IllegalStateException("No archive file loaded, use save instead");
+        }
+        if (!List.of(Version.V2, Version.V3).contains(version)) {
+            throw new IllegalStateException("Saving is only supported for version 2 and 3 archives");
+        }
+        if (!version.equals(loadedVersion)) {
+            throw new IllegalStateException("The archive version cannot be changed in place, use save instead");
+        }
+        checkMappingNotShared(file, "compacted");
+
+        // Ranges of live data, merged when they overlap or touch, moved down one after the other.
+        ArchiveIndex index = this.index;
+        List<long[]> ranges = new ArrayList<>();
+        for (int id : index.ids()) {
+            for (IndexEntry part : index.parts(id)) {
+                long length = dataLength(part);
+                if (length > 0) {
+                    ranges.add(new long[] {part.offset, part.offset + length});
+                }
+            }
+        }
+        ranges.sort(Comparator.comparingLong(range -> range[0]));
+
+        int nbExtents = 0;
+        long[] sources = new long[ranges.size()];
+        long[] targets = new long[ranges.size()];
+        long[] lengths = new long[ranges.size()];
+        long offset = headerLength();
+        for (long[] range : ranges) {
+            if (nbExtents > 0 && range[0] <= sources[nbExtents - 1] + lengths[nbExtents - 1]) {
+                long end = Math.max(sources[nbExtents - 1] + lengths[nbExtents - 1], range[1]);
+                offset += end - (sources[nbExtents - 1] + lengths[nbExtents - 1]);
+                lengths[nbExtents - 1] = end - sources[nbExtents - 1];
+                continue;
+            }
+            if (range[0] < offset) {
+                throw new IOException("File data overlaps the archive header at "+range[0]);
+            }
+            sources[nbExtents] = range[0];
+            targets[nbExtents] = offset;
+            lengths[nbExtents] = range[1] - range[0];
+            offset += lengths[nbExtents];
+            nbExtents++;
+        }
+        sources = Arrays.copyOf(sources, nbExtents);
+        targets = Arrays.copyOf(targets, nbExtents);
+        lengths = Arrays.copyOf(lengths, nbExtents);
+
+        verbosePrint("Compacting archive file... ("+(handle.size() - offset)+" bytes to reclaim, at most)");
+        byte[] newIndex;
+        try (IndexEncoder indexes = new IndexEncoder(indexKey()))
+        {
+            for (int id : index.ids()) {
+                List<IndexEntry> parts = new ArrayList<>(index.nbParts(id));
+                for (IndexEntry part : index.parts(id)) {
+                    long partOffset = headerLength();
+                    if (dataLength(part) > 0) {
+                        // Last extent starting at or before the part.
+                        int extent = Arrays.binarySearch(sources, part.offset);
+                        if (extent < 0) {
+                            extent = -extent - 2;
+                        }
+                        partOffset = targets[extent] + part.offset - sources[extent];
+                    }
+                    parts.add(new IndexEntry(partOffset, part.length, part.prefix));
+                }
+                indexes.addFile(index.name(id), parts);
+            }
+            ByteBuffer encoded = indexes.finish();
+            newIndex = Arrays.copyOfRange(encoded.array(), encoded.position(), encoded.limit());
+        }
+
+        // Nothing may read the data while it is moved. No slice of the mapping was returned (checked above), so the
+        // mapping is not accessed anymore once dropped.
+        Map<Path, StoredFile> pending = files;
+        if (contentCache != null) {
+            contentCache.invalidateAll(this);
+        }
+        mappings = null;
+        handle.close();
+        new Compactor(file, offset, header(offset), newIndex, sources, targets, lengths).run();
+        load(file);
+
+        if (!pending.isEmpty()) {
+            files = pending;
+            appendSave();
+        }
+    }
+
+    /**
+     * Fail if a slice of the mapping of the given archive file was returned, as it may still be in use.
+     *
+     * @see #slice(Path)
+     */
+    private void checkMappingNotShared(Path target, String operation)
+    {
+        Path shared = sharedMapping;
+        if (shared != null && shared.equals(target.toAbsolutePath().normalize())) {
+            throw new IllegalStateException("Slices of the memory mapping of "+target+" may still be in use, it cannot be "
+                                            +operation+": open it without memory mapping to do so");
+        }
+    }
+
+    /**
+     * Finish the interrupted compaction of an archive file, if any. An archive whose compaction was interrupted cannot
+     * be loaded until then.
+     *
+     * @return true if a compaction was resumed
+     * @see #compact()
+     */
+    public static boolean resumeCompaction(Path file) throws IOException
+    {
+        return Compactor.resume(file);
+    }
+
+    /**
+     * Length of the archive header for the current version.
+     */
+    private long headerLength()
+    {
+        return version.equals(Version.V3) ? 34 : 25;
+    }
+
+    /**
+     * Key offsets and lengths are obfuscated with in the written index.
+     */
+    private long indexKey()
+    {
+        return version.equals(Version.V3) ? key : 0;
+    }
+
+    /**
+     * Header pointing to the given index offset.
+     */
+    private byte[] header(long indexOffset)
+    {
+        String header;
+        if (version.equals(Version.V3))
+            header = String.format("%s%016x %08x\n", RPA3_MAGIC, indexOffset, key);
+        else
+            header = String.format("%s%016x\n", RPA2_MAGIC, indexOffset);
+        return header.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write the header at the beginning of the given channel.
+     */
+    private void writeHeader(long indexOffset, FileChannel archive) throws IOException
+    {
+        verbosePrint("Writing header to archive file... (version = RPAv"+version+")");
+        ByteBuffer src = ByteBuffer.wrap(header(indexOffset));
+        while (src.hasRemaining()) {
+            archive.write(src, src.position());
+        }
+    }
+}
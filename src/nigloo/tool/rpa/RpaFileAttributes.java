@@ -0,0 +1,52 @@
+package nigloo.tool.rpa;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Attributes of a file or directory in a {@link RpaFileSystem}. All times are the archive last modified time.
+ */
+record RpaFileAttributes(FileTime time, boolean isDirectory, long size) implements BasicFileAttributes
+{
+    @Override
+    public FileTime lastModifiedTime()
+    {
+        return time;
+    }
+
+    @Override
+    public FileTime lastAccessTime()
+    {
+        return time;
+    }
+
+    @Override
+    public FileTime creationTime()
+    {
+        return time;
+    }
+
+    @Override
+    public boolean isRegularFile()
+    {
+        return !isDirectory;
+    }
+
+    @Override
+    public boolean isSymbolicLink()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isOther()
+    {
+        return false;
+    }
+
+    @Override
+    public Object fileKey()
+    {
+        return null;
+    }
+}
@@ -0,0 +1,249 @@
+package nigloo.tool.rpa;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Read-only file system over the content of a Ren'Py archive.
+ * Files are read straight from the archive with positional reads, without extracting them, and directories are
+ * resolved against the name index of the archive.
+ *
+ * @see RpaFileSystemProvider
+ */
+public class RpaFileSystem extends FileSystem
+{
+    private final RpaFileSystemProvider provider;
+    private final Path archiveFile;
+    private final RenPyArchive archive;
+    private final FileTime lastModifiedTime;
+    private final RpaPath root;
+
+    private volatile boolean open = true;
+
+    RpaFileSystem(RpaFileSystemProvider provider, Path archiveFile, RenPyArchive archive) throws IOException
+    {
+        this.provider = provider;
+        this.archiveFile = archiveFile;
+        this.archive = archive;
+        this.lastModifiedTime = Files.getLastModifiedTime(archiveFile);
+        this.root = new RpaPath(this, "/");
+    }
+
+    /**
+     * The archive backing this file system.
+     */
+    public RenPyArchive getArchive()
+    {
+        return archive;
+    }
+
+    Path getArchiveFile()
+    {
+        return archiveFile;
+    }
+
+    RpaPath getRoot()
+    {
+        return root;
+    }
+
+    FileTime getLastModifiedTime()
+    {
+        return lastModifiedTime;
+    }
+
+    /**
+     * Name in the archive of a path of this file system.
+     */
+    private static Path archiveName(Path path)
+    {
+        return Path.of(path.toAbsolutePath().normalize().toString().substring(1));
+    }
+
+    boolean exists(Path path)
+    {
+        Path name = archiveName(path);
+        return archive.hasFile(name) || archive.isDirectory(name);
+    }
+
+    boolean isDirectory(Path path)
+    {
+        return archive.isDirectory(archiveName(path));
+    }
+
+    /**
+     * Archive file of the given path, or null if it is not a file.
+     */
+    Path getEntry(Path path)
+    {
+        Path name = archiveName(path);
+        return archive.hasFile(name) ? name : null;
+    }
+
+    RpaFileAttributes readAttributes(Path path) throws IOException
+    {
+        ensureOpen();
+        if (isDirectory(path)) {
+            return new RpaFileAttributes(lastModifiedTime, true, 0);
+        }
+        Path entry = getEntry(path);
+        if (entry == null) {
+            throw new NoSuchFileException(path.toString());
+        }
+        return new RpaFileAttributes(lastModifiedTime, false, archive.size(entry));
+    }
+
+    SeekableByteChannel newByteChannel(Path path) throws IOException
+    {
+        ensureOpen();
+        Path entry = getEntry(path);
+        if (entry == null) {
+            if (isDirectory(path)) {
+                throw new IOException(path+" is a directory");
+            }
+            throw new NoSuchFileException(path.toString());
+        }
+        return archive.openChannel(entry);
+    }
+
+    List<Path> listDirectory(Path dir) throws IOException
+    {
+        ensureOpen();
+        Path name = archiveName(dir);
+        if (!archive.isDirectory(name)) {
+            if (archive.hasFile(name)) {
+                throw new NotDirectoryException(dir.toString());
+            }
+            throw new NoSuchFileException(dir.toString());
+        }
+        return archive.listDirectory(name).stream()
+                      .map(child -> dir.resolve(child.path().getFileName().toString()))
+                      .toList();
+    }
+
+    void ensureOpen()
+    {
+        if (!open) {
+            throw new ClosedFileSystemException();
+        }
+    }
+
+    @Override
+    public FileSystemProvider provider()
+    {
+        return provider;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (!open) {
+            return;
+        }
+        open = false;
+        provider.removeFileSystem(this);
+        archive.close();
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly()
+    {
+        return true;
+    }
+
+    @Override
+    public String getSeparator()
+    {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories()
+    {
+        return List.of(root);
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores()
+    {
+        return List.of();
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews()
+    {
+        return Set.of("basic");
+    }
+
+    @Override
+    public Path getPath(String first, String... more)
+    {
+        StringBuilder path = new StringBuilder(first);
+        for (String name : more) {
+            if (!name.isEmpty()) {
+                if (!path.isEmpty()) {
+                    path.append('/');
+                }
+                path.append(name);
+            }
+        }
+        return new RpaPath(this, path.toString());
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern)
+    {
+        int pos = syntaxAndPattern.indexOf(':');
+        if (pos <= 0) {
+            throw new IllegalArgumentException("Invalid syntax and pattern: "+syntaxAndPattern);
+        }
+        String syntax = syntaxAndPattern.substring(0, pos);
+        String input = syntaxAndPattern.substring(pos + 1);
+
+        Pattern pattern = switch (syntax.toLowerCase()) {
+            case "glob" -> Pattern.compile(Globs.toRegex(input));
+            case "regex" -> Pattern.compile(input);
+            default -> throw new UnsupportedOperationException("Syntax '"+syntax+"' not recognized");
+        };
+        return path -> pattern.matcher(path.toString()).matches();
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchService newWatchService()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String toString()
+    {
+        return archiveFile.toString();
+    }
+}
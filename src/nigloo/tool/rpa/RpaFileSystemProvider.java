@@ -0,0 +1,382 @@
+package nigloo.tool.rpa;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Provider of read-only file systems over Ren'Py archives, with the "rpa" scheme.
+ * <p>
+ * A file system can be created from the archive path with {@link java.nio.file.FileSystems#newFileSystem(Path)}, or
+ * from an URI such as {@code rpa:file:///game/archive.rpa}. Paths in the file system can also be addressed by URI, as
+ * {@code rpa:file:///game/archive.rpa!/images/bg.png}.
+ * <p>
+ * The environment map may contain the "memoryMapped" key, to open the archive in memory-mapped mode.
+ */
+public class RpaFileSystemProvider extends FileSystemProvider
+{
+    public static final String SCHEME = "rpa";
+
+    private final Map<Path, RpaFileSystem> fileSystems = new HashMap<>();
+
+    @Override
+    public String getScheme()
+    {
+        return SCHEME;
+    }
+
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException
+    {
+        Path archiveFile = archiveFile(uri);
+        synchronized (fileSystems) {
+            if (fileSystems.containsKey(archiveFile)) {
+                throw new FileSystemAlreadyExistsException(archiveFile.toString());
+            }
+            RpaFileSystem fs = newFileSystem(archiveFile, env);
+            fileSystems.put(archiveFile, fs);
+            return fs;
+        }
+    }
+
+    @Override
+    public RpaFileSystem newFileSystem(Path path, Map<String, ?> env) throws IOException
+    {
+        // Let other providers handle files that are obviously not Ren'Py archives.
+        if (!isArchive(path)) {
+            throw new UnsupportedOperationException(path+" is not a Ren'Py archive");
+        }
+
+        Object memoryMapped = env.get("memoryMapped");
+        RenPyArchive archive = new RenPyArchive(path, null, null, null, false,
+                                                memoryMapped != null && Boolean.parseBoolean(memoryMapped.toString()));
+        try {
+            return new RpaFileSystem(this, path.toRealPath(), archive);
+        }
+        catch (IOException | RuntimeException e) {
+            archive.close();
+            throw e;
+        }
+    }
+
+    private static boolean isArchive(Path path) throws IOException
+    {
+        if (path.getFileName() != null && path.getFileName().toString().endsWith(".rpi")) {
+            return true;
+        }
+        try (InputStream in = Files.newInputStream(path)) {
+            return new String(in.readNBytes(4), StandardCharsets.US_ASCII).equals("RPA-");
+        }
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri)
+    {
+        synchronized (fileSystems) {
+            RpaFileSystem fs = fileSystems.get(archiveFile(uri));
+            if (fs == null) {
+                throw new FileSystemNotFoundException(uri.toString());
+            }
+            return fs;
+        }
+    }
+
+    void removeFileSystem(RpaFileSystem fs)
+    {
+        synchronized (fileSystems) {
+            fileSystems.remove(fs.getArchiveFile(), fs);
+        }
+    }
+
+    @Override
+    public Path getPath(URI uri)
+    {
+        String spec = uri.getRawSchemeSpecificPart();
+        int sep = spec.indexOf("!/");
+        if (sep < 0) {
+            throw new IllegalArgumentException("URI: "+uri+" does not contain path info, ex: rpa:file:///archive.rpa!/");
+        }
+        return getFileSystem(uri).getPath(URI.create(spec.substring(sep + 1)).getPath());
+    }
+
+    private Path archiveFile(URI uri)
+    {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+            throw new IllegalArgumentException("URI scheme is not '"+SCHEME+"'");
+        }
+        String spec = uri.getRawSchemeSpecificPart();
+        int sep = spec.indexOf("!/");
+        if (sep >= 0) {
+            spec = spec.substring(0, sep);
+        }
+        Path archiveFile = Path.of(URI.create(spec)).toAbsolutePath();
+        try {
+            return archiveFile.toRealPath();
+        }
+        catch (IOException e) {
+            return archiveFile.normalize();
+        }
+    }
+
+    private static RpaPath toRpaPath(Path path)
+    {
+        if (!(path instanceof RpaPath rpaPath)) {
+            throw new ProviderMismatchException();
+        }
+        return rpaPath;
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException
+    {
+        for (OpenOption option : options) {
+            if (option != StandardOpenOption.READ && option != LinkOption.NOFOLLOW_LINKS) {
+                throw new ReadOnlyFileSystemException();
+            }
+        }
+        return toRpaPath(path).getFileSystem().newByteChannel(path);
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException
+    {
+        List<Path> children = toRpaPath(dir).getFileSystem().listDirectory(dir);
+        return new DirectoryStream<>()
+        {
+            private boolean open = true;
+            private boolean iterated = false;
+
+            @Override
+            public Iterator<Path> iterator()
+            {
+                if (!open) {
+                    throw new IllegalStateException("Directory stream is closed");
+                }
+                if (iterated) {
+                    throw new IllegalStateException("Iterator already obtained");
+                }
+                iterated = true;
+
+                Iterator<Path> it = children.iterator();
+                return new Iterator<>()
+                {
+                    private Path next = null;
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        try {
+                            while (next == null && open && it.hasNext()) {
+                                Path child = it.next();
+                                if (filter == null || filter.accept(child)) {
+                                    next = child;
+                                }
+                            }
+                        }
+                        catch (IOException e) {
+                            throw new DirectoryIteratorException(e);
+                        }
+                        return next != null;
+                    }
+
+                    @Override
+                    public Path next()
+                    {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Path result = next;
+                        next = null;
+                        return result;
+                    }
+                };
+            }
+
+            @Override
+            public void close()
+            {
+                open = false;
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs)
+    {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void delete(Path path)
+    {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options)
+    {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options)
+    {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) throws IOException
+    {
+        if (path.equals(path2)) {
+            return true;
+        }
+        if (!(path2 instanceof RpaPath) || path.getFileSystem() != path2.getFileSystem()) {
+            return false;
+        }
+        return path.toRealPath().equals(path2.toRealPath());
+    }
+
+    @Override
+    public boolean isHidden(Path path)
+    {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException
+    {
+        RpaFileSystem fs = toRpaPath(path).getFileSystem();
+        fs.ensureOpen();
+        if (!fs.exists(path)) {
+            throw new NoSuchFileException(path.toString());
+        }
+        for (AccessMode mode : modes) {
+            if (mode != AccessMode.READ) {
+                throw new AccessDeniedException(path.toString());
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options)
+    {
+        RpaPath rpaPath = toRpaPath(path);
+        if (type != BasicFileAttributeView.class) {
+            return null;
+        }
+        return (V) new BasicFileAttributeView()
+        {
+            @Override
+            public String name()
+            {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException
+            {
+                return rpaPath.getFileSystem().readAttributes(rpaPath);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime)
+            {
+                throw new ReadOnlyFileSystemException();
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException
+    {
+        if (type != BasicFileAttributes.class) {
+            throw new UnsupportedOperationException("Attributes of type "+type.getName()+" not supported");
+        }
+        return (A) toRpaPath(path).getFileSystem().readAttributes(path);
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException
+    {
+        int pos = attributes.indexOf(':');
+        if (pos >= 0) {
+            String view = attributes.substring(0, pos);
+            if (!view.equals("basic")) {
+                throw new UnsupportedOperationException("View '"+view+"' not available");
+            }
+            attributes = attributes.substring(pos + 1);
+        }
+
+        RpaFileAttributes attrs = toRpaPath(path).getFileSystem().readAttributes(path);
+        Map<String, Object> all = new LinkedHashMap<>();
+        all.put("lastModifiedTime", attrs.lastModifiedTime());
+        all.put("lastAccessTime", attrs.lastAccessTime());
+        all.put("creationTime", attrs.creationTime());
+        all.put("size", attrs.size());
+        all.put("isRegularFile", attrs.isRegularFile());
+        all.put("isDirectory", attrs.isDirectory());
+        all.put("isSymbolicLink", attrs.isSymbolicLink());
+        all.put("isOther", attrs.isOther());
+        all.put("fileKey", attrs.fileKey());
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (String name : attributes.split(",")) {
+            if (name.equals("*")) {
+                result.putAll(all);
+            }
+            else if (all.containsKey(name)) {
+                result.put(name, all.get(name));
+            }
+            else {
+                throw new IllegalArgumentException("'"+name+"' not recognized");
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options)
+    {
+        throw new ReadOnlyFileSystemException();
+    }
+}
@@ -0,0 +1,330 @@
+package nigloo.tool.rpa;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Objects;
+
+/**
+ * Path of a file or directory in a {@link RpaFileSystem}. Names are separated by '/' and the root is "/".
+ */
+final class RpaPath implements Path
+{
+    private final RpaFileSystem fs;
+    private final String path;
+    private String[] names = null;
+
+    RpaPath(RpaFileSystem fs, String path)
+    {
+        this.fs = fs;
+        this.path = normalizeSeparators(path);
+    }
+
+    /**
+     * Remove redundant and trailing separators.
+     */
+    private static String normalizeSeparators(String path)
+    {
+        StringBuilder sb = new StringBuilder(path.length());
+        char previous = 0;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '\u0000') {
+                throw new IllegalArgumentException("Nul character not allowed in path: "+path);
+            }
+            if (c != '/' || previous != '/') {
+                sb.append(c);
+            }
+            previous = c;
+        }
+        if (sb.length() > 1 && sb.charAt(sb.length() - 1) == '/') {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+
+    private String[] names()
+    {
+        if (names == null) {
+            if (path.equals("/")) {
+                names = new String[0];
+            }
+            else {
+                names = (isAbsolute() ? path.substring(1) : path).split("/", -1);
+            }
+        }
+        return names;
+    }
+
+    private static RpaPath toRpaPath(Path path)
+    {
+        Objects.requireNonNull(path, "path cannot be null");
+        if (!(path instanceof RpaPath rpaPath)) {
+            throw new ProviderMismatchException();
+        }
+        return rpaPath;
+    }
+
+    private RpaPath fromNames(boolean absolute, String[] names, int begin, int end)
+    {
+        return new RpaPath(fs, (absolute ? "/" : "") + String.join("/", Arrays.asList(names).subList(begin, end)));
+    }
+
+    @Override
+    public RpaFileSystem getFileSystem()
+    {
+        return fs;
+    }
+
+    @Override
+    public boolean isAbsolute()
+    {
+        return path.startsWith("/");
+    }
+
+    @Override
+    public Path getRoot()
+    {
+        return isAbsolute() ? fs.getRoot() : null;
+    }
+
+    @Override
+    public Path getFileName()
+    {
+        String[] names = names();
+        if (names.length == 0) {
+            return null;
+        }
+        if (names.length == 1 && !isAbsolute()) {
+            return this;
+        }
+        return new RpaPath(fs, names[names.length - 1]);
+    }
+
+    @Override
+    public Path getParent()
+    {
+        String[] names = names();
+        if (names.length == 0) {
+            return null;
+        }
+        if (names.length == 1) {
+            return getRoot();
+        }
+        return fromNames(isAbsolute(), names, 0, names.length - 1);
+    }
+
+    @Override
+    public int getNameCount()
+    {
+        return names().length;
+    }
+
+    @Override
+    public Path getName(int index)
+    {
+        String[] names = names();
+        if (index < 0 || index >= names.length) {
+            throw new IllegalArgumentException("Invalid name index "+index+" for path "+path);
+        }
+        return new RpaPath(fs, names[index]);
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex)
+    {
+        String[] names = names();
+        if (beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex) {
+            throw new IllegalArgumentException("Invalid subpath ["+beginIndex+", "+endIndex+"[ for path "+path);
+        }
+        return fromNames(false, names, beginIndex, endIndex);
+    }
+
+    @Override
+    public boolean startsWith(Path other)
+    {
+        if (!(other instanceof RpaPath o) || o.fs != fs || o.isAbsolute() != isAbsolute()) {
+            return false;
+        }
+        if (o.path.isEmpty()) {
+            return path.isEmpty();
+        }
+        String[] names = names();
+        String[] otherNames = o.names();
+        if (otherNames.length > names.length) {
+            return false;
+        }
+        for (int i = 0; i < otherNames.length; i++) {
+            if (!names[i].equals(otherNames[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(Path other)
+    {
+        if (!(other instanceof RpaPath o) || o.fs != fs) {
+            return false;
+        }
+        if (o.isAbsolute()) {
+            return equals(o);
+        }
+        if (o.path.isEmpty()) {
+            return path.isEmpty();
+        }
+        String[] names = names();
+        String[] otherNames = o.names();
+        if (otherNames.length > names.length) {
+            return false;
+        }
+        for (int i = 1; i <= otherNames.length; i++) {
+            if (!names[names.length - i].equals(otherNames[otherNames.length - i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Path normalize()
+    {
+        Deque<String> normalized = new ArrayDeque<>();
+        for (String name : names()) {
+            if (name.equals(".")) {
+                continue;
+            }
+            if (name.equals("..")) {
+                if (!normalized.isEmpty() && !normalized.peekLast().equals("..")) {
+                    normalized.removeLast();
+                    continue;
+                }
+                if (isAbsolute()) {
+                    // Cannot go above the root.
+                    continue;
+                }
+            }
+            normalized.addLast(name);
+        }
+        return new RpaPath(fs, (isAbsolute() ? "/" : "") + String.join("/", normalized));
+    }
+
+    @Override
+    public Path resolve(Path other)
+    {
+        RpaPath o = toRpaPath(other);
+        if (o.isAbsolute()) {
+            return o;
+        }
+        if (o.path.isEmpty()) {
+            return this;
+        }
+        if (path.isEmpty()) {
+            return o;
+        }
+        return new RpaPath(fs, path.equals("/") ? "/" + o.path : path + "/" + o.path);
+    }
+
+    @Override
+    public Path resolve(String other)
+    {
+        return resolve(new RpaPath(fs, other));
+    }
+
+    @Override
+    public Path relativize(Path other)
+    {
+        RpaPath o = toRpaPath(other);
+        if (o.isAbsolute() != isAbsolute()) {
+            throw new IllegalArgumentException("'other' is different type of Path");
+        }
+        if (path.isEmpty()) {
+            return o;
+        }
+
+        String[] names = names();
+        String[] otherNames = o.names();
+        int common = 0;
+        while (common < names.length && common < otherNames.length && names[common].equals(otherNames[common])) {
+            common++;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = common; i < names.length; i++) {
+            sb.append(sb.isEmpty() ? "" : "/").append("..");
+        }
+        for (int i = common; i < otherNames.length; i++) {
+            sb.append(sb.isEmpty() ? "" : "/").append(otherNames[i]);
+        }
+        return new RpaPath(fs, sb.toString());
+    }
+
+    @Override
+    public URI toUri()
+    {
+        try {
+            String entry = new URI(null, null, ((RpaPath) toAbsolutePath()).path, null).getRawPath();
+            return new URI(RpaFileSystemProvider.SCHEME + ":" + fs.getArchiveFile().toUri() + "!" + entry);
+        }
+        catch (URISyntaxException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public Path toAbsolutePath()
+    {
+        return isAbsolute() ? this : fs.getRoot().resolve(this);
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException
+    {
+        Path realPath = toAbsolutePath().normalize();
+        if (!fs.exists(realPath)) {
+            throw new NoSuchFileException(toString());
+        }
+        return realPath;
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int compareTo(Path other)
+    {
+        return path.compareTo(toRpaPath(other).path);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        return obj instanceof RpaPath o && o.fs == fs && o.path.equals(path);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return path;
+    }
+}
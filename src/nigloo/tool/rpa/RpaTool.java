@@ -0,0 +1,643 @@
+package nigloo.tool.rpa;
+
+import nigloo.tool.rpa.RenPyArchive.Version;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Stream;
+
+/**
+ * Command-line tool to list, extract, create, append to and delete from Ren'Py archives, with the options of rpatool.
+ * It does not need JavaFX, and can be run from the class path:
+ * <pre>
+ * java -cp Tools.jar:pickle.jar nigloo.tool.rpa.RpaTool [OPTION]... ARCHIVE [FILE]...
+ * </pre>
+ * Extraction and saving run on several threads, reading the archives in offset order, and report their progress on
+ * the error stream.
+ */
+public final class RpaTool
+{
+    private static final String VERSION = "rpatool 1.0 (Java)";
+
+    private static final String USAGE = """
+            Usage: rpatool [OPTION]... ARCHIVE [FILE]...
+            A tool for working with Ren'Py archive files.
+
+            Operations:
+              -l, --list             List the files of ARCHIVE.
+              -x, --extract          Extract FILEs, or all files, from ARCHIVE.
+              -c, --create           Create ARCHIVE from FILEs.
+              -a, --append           Append FILEs to ARCHIVE.
+              -d, --delete           Delete FILEs from ARCHIVE.
+              -r, --resume           Finish an interrupted compaction of ARCHIVE, left by a deletion in place.
+
+            Options:
+              -2, --two              Use the RPAv2 format when saving.
+              -3, --three            Use the RPAv3 format when saving (default for new archives).
+              -k, --key KEY          The obfuscation key of new RPAv3 archives, in hexadecimal (default: DEADBEEF).
+              -p, --padding COUNT    The maximum number of bytes of padding between files (default: 0).
+              -o, --outfile PATH     The output archive when appending or deleting, instead of updating ARCHIVE in
+                                     place, or the output directory when extracting (default: current directory).
+              -j, --threads COUNT    The number of threads extracting or preparing files (default: processors).
+              -i, --include GLOB     Only operate on the files matching GLOB. Can be repeated.
+              -e, --exclude GLOB     Do not operate on the files matching GLOB. Can be repeated.
+              -q, --quiet            Do not report progress.
+              -v, --verbose          Be a bit more verbose while performing operations.
+              -h, --help             Print this help and exit.
+              -V, --version          Show version information and exit.
+
+            A FILE can be given as ARCHIVE=REAL, mapping a file in the archive to a file on the real file system, as in
+            "rpatool -x test.rpa script.rpyc=/home/foo/test.rpyc". Directories are added recursively.
+            GLOBs use the syntax of java.nio.file.FileSystem#getPathMatcher, with '/' separators. A GLOB without '/' is
+            matched against the file name only, so "*.rpyc" matches the .rpyc files of all directories.
+            """;
+
+    private enum Operation
+    {
+        LIST, EXTRACT, CREATE, APPEND, DELETE, RESUME
+    }
+
+    /**
+     * Invalid command line.
+     */
+    private static class UsageException extends Exception
+    {
+        private static final long serialVersionUID = 7142695267866854236L;
+
+        UsageException(String message)
+        {
+            super(message);
+        }
+    }
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+    private Operation operation = null;
+    private Version version = null;
+    private Long key = null;
+    private Integer padding = null;
+    private Path output = null;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private final List<Pattern> includes = new ArrayList<>();
+    private final List<Pattern> excludes = new ArrayList<>();
+    private boolean quiet = false;
+    private boolean verbose = false;
+    private Path archiveFile = null;
+    private final List<String> files = new ArrayList<>();
+
+    private boolean failed = false;
+
+    private RpaTool(PrintStream out, PrintStream err)
+    {
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args)
+    {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * Run the tool.
+     *
+     * @return the exit status: 0 on success, 1 if an operation failed, 2 if the command line is invalid
+     */
+    public static int run(String[] args, PrintStream out, PrintStream err)
+    {
+        RpaTool tool = new RpaTool(out, err);
+        try {
+            if (!tool.parse(args)) {
+                return 0;
+            }
+            tool.execute();
+            return tool.failed ? 1 : 0;
+        }
+        catch (UsageException e) {
+            err.println("rpatool: "+e.getMessage());
+            err.println("Use rpatool --help for usage details.");
+            return 2;
+        }
+        catch (IOException | RuntimeException e) {
+            err.println("rpatool: "+e);
+            return 1;
+        }
+    }
+
+    /**
+     * Parse the command line.
+     *
+     * @return false if the tool must exit without doing anything
+     */
+    private boolean parse(String[] args) throws UsageException
+    {
+        List<String> positional = new ArrayList<>();
+        boolean optionsEnded = false;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (optionsEnded || !arg.startsWith("-") || arg.equals("-")) {
+                positional.add(arg);
+                continue;
+            }
+            if (arg.equals("--")) {
+                optionsEnded = true;
+                continue;
+            }
+
+            // Options taking a value: "-k VALUE", "--key VALUE" or "--key=VALUE".
+            String name = arg;
+            String value = null;
+            if (arg.startsWith("--") && arg.indexOf('=') > 0) {
+                name = arg.substring(0, arg.indexOf('='));
+                value = arg.substring(arg.indexOf('=') + 1);
+            }
+            if (takesValue(name)) {
+                if (value == null) {
+                    if (i + 1 == args.length) {
+                        throw new UsageException("Option "+name+" requires a value");
+                    }
+                    value = args[++i];
+                }
+                setOption(name, value);
+                continue;
+            }
+            if (value != null) {
+                throw new UsageException("Option "+name+" does not take a value");
+            }
+
+            // Flags, possibly grouped as in "-xv".
+            List<String> flags = new ArrayList<>();
+            if (arg.startsWith("--")) {
+                flags.add(arg);
+            }
+            else {
+                for (char c : arg.substring(1).toCharArray()) {
+                    flags.add("-"+c);
+                }
+            }
+            for (String flag : flags) {
+                switch (flag) {
+                    case "-h", "--help" -> {
+                        out.print(USAGE);
+                        return false;
+                    }
+                    case "-V", "--version" -> {
+                        out.println(VERSION);
+                        return false;
+                    }
+                    default -> setFlag(flag);
+                }
+            }
+        }
+
+        if (operation == null) {
+            throw new UsageException("No operation given");
+        }
+        if (positional.isEmpty()) {
+            throw new UsageException("No archive given");
+        }
+        archiveFile = Path.of(positional.get(0));
+        files.addAll(positional.subList(1, positional.size()));
+        return true;
+    }
+
+    private static boolean takesValue(String option)
+    {
+        return switch (option) {
+            case "-k", "--key", "-p", "--padding", "-o", "--outfile", "-j", "--threads",
+                 "-i", "--include", "-e", "--exclude" -> true;
+            default -> false;
+        };
+    }
+
+    private void setOption(String option, String value) throws UsageException
+    {
+        try {
+            switch (option) {
+                case "-k", "--key" -> key = Long.parseLong(value.startsWith("0x") || value.startsWith("0X") ? value.substring(2) : value, 16);
+                case "-p", "--padding" -> padding = Integer.parseInt(value);
+                case "-o", "--outfile" -> output = Path.of(value);
+                case "-j", "--threads" -> {
+                    threads = Integer.parseInt(value);
+                    if (threads < 1) {
+                        throw new UsageException("The number of threads must be positive: "+value);
+                    }
+                }
+                case "-i", "--include" -> includes.add(globPattern(value));
+                case "-e", "--exclude" -> excludes.add(globPattern(value));
+                default -> throw new IllegalArgumentException(option);
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new UsageException("Invalid value for option "+option+": "+value);
+        }
+    }
+
+    private void setFlag(String flag) throws UsageException
+    {
+        switch (flag) {
+            case "-l", "--list" -> setOperation(Operation.LIST);
+            case "-x", "--extract" -> setOperation(Operation.EXTRACT);
+            case "-c", "--create" -> setOperation(Operation.CREATE);
+            case "-a", "--append" -> setOperation(Operation.APPEND);
+            case "-d", "--delete" -> setOperation(Operation.DELETE);
+            case "-r", "--resume" -> setOperation(Operation.RESUME);
+            case "-2", "--two" -> version = Version.V2;
+            case "-3", "--three" -> version = Version.V3;
+            case "-q", "--quiet" -> quiet = true;
+            case "-v", "--verbose" -> verbose = true;
+            default -> throw new UsageException("Unknown option "+flag);
+        }
+    }
+
+    private void setOperation(Operation operation) throws UsageException
+    {
+        if (this.operation != null && this.operation != operation) {
+            throw new UsageException("Only one operation can be given");
+        }
+        this.operation = operation;
+    }
+
+    private static Pattern globPattern(String glob) throws UsageException
+    {
+        try {
+            // Match the file name only if the pattern has no directory.
+            return Pattern.compile(Globs.toRegex(glob.indexOf('/') < 0 ? "{**/,}"+glob : glob));
+        }
+        catch (PatternSyntaxException e) {
+            throw new UsageException("Invalid glob "+glob+": "+e.getDescription());
+        }
+    }
+
+    /**
+     * Check if a file of an archive matches the include and exclude globs.
+     */
+    private boolean selected(String name)
+    {
+        if (!includes.isEmpty() && includes.stream().noneMatch(pattern -> pattern.matcher(name).matches())) {
+            return false;
+        }
+        return excludes.stream().noneMatch(pattern -> pattern.matcher(name).matches());
+    }
+
+    private void error(String message)
+    {
+        err.println(message);
+        failed = true;
+    }
+
+    private void execute() throws IOException, UsageException
+    {
+        switch (operation) {
+            case LIST -> list();
+            case EXTRACT -> extract();
+            case CREATE -> create();
+            case APPEND -> append();
+            case DELETE -> delete();
+            case RESUME -> resume();
+        }
+    }
+
+    private RenPyArchive openArchive() throws IOException
+    {
+        return new RenPyArchive(archiveFile, version, padding, key, verbose);
+    }
+
+    private void list() throws IOException
+    {
+        try (RenPyArchive archive = openArchive()) {
+            archive.list().stream()
+                   .map(RenPyArchive::convertFilename)
+                   .filter(this::selected)
+                   .sorted()
+                   .forEach(out::println);
+        }
+    }
+
+    private void extract() throws IOException
+    {
+        Path outputDir = output != null ? output : Path.of(".");
+        try (RenPyArchive archive = openArchive()) {
+            // Files mapped to another real path are extracted one by one, the others all at once.
+            Set<String> names = new LinkedHashSet<>();
+            Map<String, Path> mapped = new LinkedHashMap<>();
+            for (String file : files) {
+                int sep = file.indexOf('=');
+                String name = RenPyArchive.convertFilename(Path.of(sep < 0 ? file : file.substring(0, sep)));
+                if (!archive.hasFile(Path.of(name))) {
+                    error("File "+name+" does not exist in archive "+archiveFile);
+                }
+                else if (sep < 0) {
+                    names.add(name);
+                }
+                else {
+                    mapped.put(name, outputDir.resolve(file.substring(sep + 1)));
+                }
+            }
+
+            List<Path> selected = new ArrayList<>();
+            long totalSize = 0;
+            for (Path filename : archive.list()) {
+                String name = RenPyArchive.convertFilename(filename);
+                if ((files.isEmpty() || names.contains(name)) && selected(name)) {
+                    selected.add(filename);
+                    totalSize += archive.size(filename);
+                }
+            }
+            for (String name : mapped.keySet()) {
+                totalSize += archive.size(Path.of(name));
+            }
+
+            try (Progress progress = startProgress("Extracting", selected.size() + mapped.size(), totalSize)) {
+                Set<Path> selection = Set.copyOf(selected);
+                ExtractOptions options = new ExtractOptions().parallelism(threads)
+                                                             .filter(selection::contains)
+                                                             .progress(result -> progress.add(result.size()));
+                for (ExtractResult result : archive.extractAll(outputDir, options)) {
+                    if (!result.isSuccess()) {
+                        error("Could not extract file "+result.filename()+" from archive: "+result.error());
+                    }
+                }
+
+                for (Map.Entry<String, Path> entry : mapped.entrySet()) {
+                    try {
+                        Files.createDirectories(entry.getValue().toAbsolutePath().getParent());
+                        progress.add(archive.extract(Path.of(entry.getKey()), entry.getValue()));
+                    }
+                    catch (IOException e) {
+                        error("Could not extract file "+entry.getKey()+" from archive: "+e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void create() throws IOException, UsageException
+    {
+        if (files.isEmpty()) {
+            throw new UsageException("No files to add to the archive");
+        }
+        try (RenPyArchive archive = new RenPyArchive(null, version, padding, key, verbose)) {
+            long totalSize = addFiles(archive);
+            save(archive, archiveFile, archive.list().size(), totalSize);
+        }
+    }
+
+    private void append() throws IOException, UsageException
+    {
+        if (files.isEmpty()) {
+            throw new UsageException("No files to add to the archive");
+        }
+        try (RenPyArchive archive = openArchive()) {
+            int nbArchived = archive.list().size();
+            long totalSize = addFiles(archive);
+            if (output == null && (version == null || version.equals(archive.getVersion()))) {
+                // Only the new files are written.
+                try (Progress progress = startProgress("Appending", archive.list().size() - nbArchived, totalSize)) {
+                    archive.appendSave(new SaveOptions().parallelism(threads)
+                                                        .progress((filename, size) -> progress.add(size)));
+                }
+            }
+            else {
+                save(archive, output != null ? output : archiveFile, archive.list().size(), archiveSize(archive));
+            }
+        }
+    }
+
+    private void delete() throws IOException, UsageException
+    {
+        if (files.isEmpty() && includes.isEmpty()) {
+            throw new UsageException("No files to delete, give FILEs or --include globs");
+        }
+        try (RenPyArchive archive = openArchive()) {
+            List<Path> toDelete = new ArrayList<>();
+            if (files.isEmpty()) {
+                toDelete.addAll(archive.list());
+            }
+            else {
+                for (String file : files) {
+                    toDelete.add(Path.of(RenPyArchive.convertFilename(Path.of(file))));
+                }
+            }
+
+            for (Path filename : toDelete) {
+                if (!selected(RenPyArchive.convertFilename(filename))) {
+                    continue;
+                }
+                try {
+                    archive.remove(filename);
+                }
+                catch (NoSuchElementException e) {
+                    error("Could not delete file "+filename+" from archive: "+e.getMessage());
+                }
+            }
+
+            if (output == null && (version == null || version.equals(archive.getVersion()))) {
+                // In place, only the remaining data is moved.
+                archive.compact();
+            }
+            else {
+                save(archive, output != null ? output : archiveFile, archive.list().size(), archiveSize(archive));
+            }
+        }
+    }
+
+    private void resume() throws IOException
+    {
+        if (!RenPyArchive.resumeCompaction(archiveFile)) {
+            error("No interrupted compaction of archive "+archiveFile);
+        }
+    }
+
+    /**
+     * Add the FILEs to the internal storage of an archive, recursively for directories.
+     *
+     * @return the total size of the files added
+     */
+    private long addFiles(RenPyArchive archive) throws IOException
+    {
+        long totalSize = 0;
+        for (String file : files) {
+            int sep = file.indexOf('=');
+            String name = RenPyArchive.convertFilename(Path.of(sep < 0 ? file : file.substring(0, sep)));
+            Path source = Path.of(sep < 0 ? file : file.substring(sep + 1));
+
+            if (!Files.exists(source)) {
+                error("Could not add file "+source+" to archive: it does not exist");
+                continue;
+            }
+            List<Path> sources;
+            try (Stream<Path> walk = Files.walk(source)) {
+                sources = walk.filter(Files::isRegularFile).sorted().toList();
+            }
+            for (Path path : sources) {
+                String relative = RenPyArchive.convertFilename(source.relativize(path));
+                String filename = relative.isEmpty() ? name : name.isEmpty() ? relative : name+"/"+relative;
+                if (!selected(filename)) {
+                    continue;
+                }
+                try {
+                    archive.add(Path.of(filename), path);
+                    totalSize += Files.size(path);
+                }
+                catch (IllegalArgumentException | IOException e) {
+                    error("Could not add file "+path+" to archive: "+e.getMessage());
+                }
+            }
+        }
+        return totalSize;
+    }
+
+    private static long archiveSize(RenPyArchive archive) throws IOException
+    {
+        long size = 0;
+        for (Path filename : archive.list()) {
+            size += archive.size(filename);
+        }
+        return size;
+    }
+
+    private void save(RenPyArchive archive, Path target, int nbFiles, long totalSize) throws IOException
+    {
+        if (version != null) {
+            archive.setVersion(version);
+        }
+        try (Progress progress = startProgress("Writing", nbFiles, totalSize)) {
+            archive.save(target, new SaveOptions().parallelism(threads)
+                                                  .progress((filename, size) -> progress.add(size)));
+        }
+    }
+
+    private Progress startProgress(String label, long nbFiles, long totalSize)
+    {
+        return new Progress(quiet ? null : err, label, nbFiles, totalSize);
+    }
+
+    /**
+     * Progress of an operation on files of known total size, reported periodically with its throughput and estimated
+     * remaining time: on a single updated line on a terminal, or on a new line every few seconds otherwise.
+     */
+    private static final class Progress implements AutoCloseable
+    {
+        private final PrintStream err;
+        private final String label;
+        private final long nbFiles;
+        private final long totalSize;
+        private final boolean interactive = System.console() != null;
+        private final long start = System.nanoTime();
+        private final AtomicLong doneFiles = new AtomicLong();
+        private final AtomicLong doneSize = new AtomicLong();
+        private final ScheduledExecutorService timer;
+
+        /**
+         * @param err the stream progress is reported to, or null not to report it
+         */
+        Progress(PrintStream err, String label, long nbFiles, long totalSize)
+        {
+            this.err = err;
+            this.label = label;
+            this.nbFiles = nbFiles;
+            this.totalSize = totalSize;
+            if (err != null) {
+                timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "rpatool-progress");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                long period = interactive ? 250 : 5000;
+                timer.scheduleAtFixedRate(() -> report(false), period, period, TimeUnit.MILLISECONDS);
+            }
+            else {
+                timer = null;
+            }
+        }
+
+        /**
+         * Count a file as done.
+         */
+        void add(long size)
+        {
+            doneFiles.incrementAndGet();
+            doneSize.addAndGet(size);
+        }
+
+        private synchronized void report(boolean last)
+        {
+            long files = doneFiles.get();
+            long size = doneSize.get();
+            double seconds = Math.max((System.nanoTime() - start) / 1e9, 1e-3);
+            double rate = size / seconds;
+
+            StringBuilder line = new StringBuilder(label).append(": ");
+            if (totalSize > 0) {
+                line.append(String.format("%5.1f%% ", 100.0 * size / totalSize));
+            }
+            line.append(files).append('/').append(nbFiles).append(" files, ")
+                .append(formatSize(size)).append('/').append(formatSize(totalSize)).append(", ")
+                .append(formatSize((long) rate)).append("/s, ");
+            if (last) {
+                line.append("done in ").append(formatDuration(seconds));
+            }
+            else {
+                line.append("ETA ").append(size > 0 ? formatDuration((totalSize - size) / rate) : "--:--");
+            }
+
+            if (interactive) {
+                // Pad to erase a longer previous line.
+                err.print("\r"+String.format("%-79s", line));
+                if (last) {
+                    err.println();
+                }
+            }
+            else {
+                err.println(line);
+            }
+            err.flush();
+        }
+
+        @Override
+        public void close()
+        {
+            if (timer != null) {
+                timer.shutdownNow();
+                report(true);
+            }
+        }
+
+        private static String formatSize(long size)
+        {
+            String[] units = {"B", "KiB", "MiB", "GiB", "TiB"};
+            double value = size;
+            int unit = 0;
+            while (value >= 1024 && unit < units.length - 1) {
+                value /= 1024;
+                unit++;
+            }
+            return unit == 0 ? size+" B" : String.format("%.1f %s", value, units[unit]);
+        }
+
+        private static String formatDuration(double seconds)
+        {
+            long total = Math.round(Math.max(seconds, 0));
+            long hours = total / 3600;
+            return hours > 0 ? String.format("%d:%02d:%02d", hours, total / 60 % 60, total % 60)
+                             : String.format("%d:%02d", total / 60, total % 60);
+        }
+    }
+}
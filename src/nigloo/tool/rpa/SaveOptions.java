@@ -0,0 +1,78 @@
+package nigloo.tool.rpa;
+
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Options of {@link RenPyArchive#save(Path, SaveOptions)}.
+ */
+public class SaveOptions
+{
+    private Executor executor = null;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private boolean deduplicate = false;
+    private ObjLongConsumer<Path> progress = (filename, size) -> {};
+
+    /**
+     * Executor running the workers preparing the files to write. If not set, a pool of {@link #getParallelism()}
+     * platform threads is created for the save and shut down afterward.
+     */
+    public SaveOptions executor(Executor executor)
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Number of files prepared at the same time.
+     */
+    public SaveOptions parallelism(int parallelism)
+    {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: "+parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * If true, a file with the same content as a file already written is not written again, its index entry points
+     * to the data of the first one instead.
+     */
+    public SaveOptions deduplicate(boolean deduplicate)
+    {
+        this.deduplicate = deduplicate;
+        return this;
+    }
+
+    /**
+     * Called with the name and size of each file once it is written, from the thread saving the archive.
+     */
+    public SaveOptions progress(ObjLongConsumer<Path> progress)
+    {
+        this.progress = Objects.requireNonNull(progress, "progress cannot be null");
+        return this;
+    }
+
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    public boolean isDeduplicate()
+    {
+        return deduplicate;
+    }
+
+    public ObjLongConsumer<Path> getProgress()
+    {
+        return progress;
+    }
+}
@@ -0,0 +1,70 @@
+package nigloo.tool.rpa;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executor;
+
+/**
+ * Options of {@link RenPyArchive#verify(VerifyOptions)}.
+ */
+public class VerifyOptions
+{
+    private Executor executor = null;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private String digestAlgorithm = null;
+
+    /**
+     * Executor running the verification workers. If not set, a pool of {@link #getParallelism()} platform threads is
+     * created for the verification and shut down afterward.
+     */
+    public VerifyOptions executor(Executor executor)
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Number of files read at the same time.
+     */
+    public VerifyOptions parallelism(int parallelism)
+    {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: "+parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Algorithm of the digests computed for each file, as accepted by {@link MessageDigest#getInstance(String)}, or
+     * null not to compute digests.
+     */
+    public VerifyOptions digest(String algorithm)
+    {
+        if (algorithm != null) {
+            try {
+                MessageDigest.getInstance(algorithm);
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unknown digest algorithm: "+algorithm, e);
+            }
+        }
+        this.digestAlgorithm = algorithm;
+        return this;
+    }
+
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    public String getDigestAlgorithm()
+    {
+        return digestAlgorithm;
+    }
+}
@@ -0,0 +1,44 @@
+package nigloo.tool.rpa;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of the verification of an archive, see {@link RenPyArchive#verify(VerifyOptions)}.
+ *
+ * @param digestAlgorithm the algorithm of the file digests, or null if they were not computed
+ * @param dataStart       the start of the data area of the archive, after the header
+ * @param dataEnd         the end of the data area of the archive, where the index starts
+ * @param results         the results of each file of the archive, in the order of their data
+ */
+public record VerifyReport(String digestAlgorithm, long dataStart, long dataEnd, List<VerifyResult> results)
+{
+    public boolean isValid()
+    {
+        return results.stream().allMatch(VerifyResult::isValid);
+    }
+
+    /**
+     * Results of the files with issues.
+     */
+    public List<VerifyResult> failures()
+    {
+        return results.stream().filter(result -> !result.isValid()).toList();
+    }
+
+    /**
+     * Digests of the files that could be read, in the order of their data.
+     */
+    public Map<Path, byte[]> digests()
+    {
+        Map<Path, byte[]> digests = new LinkedHashMap<>();
+        for (VerifyResult result : results) {
+            if (result.digest() != null) {
+                digests.put(result.filename(), result.digest());
+            }
+        }
+        return digests;
+    }
+}
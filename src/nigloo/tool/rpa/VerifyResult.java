@@ -0,0 +1,38 @@
+package nigloo.tool.rpa;
+
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * Result of the verification of a single file of an archive.
+ *
+ * @param filename the file in the archive
+ * @param size     the size of the file, according to the index
+ * @param issues   the problems found, empty if the file is valid
+ * @param digest   the digest of the file content, or null if not requested or if the file could not be read
+ * @param error    the error that made reading the file fail, or null
+ */
+public record VerifyResult(Path filename, long size, Set<VerifyResult.Issue> issues, byte[] digest, Throwable error)
+{
+    public enum Issue
+    {
+        /**
+         * Data of the file outside of the data area of the archive, between the header and the index.
+         */
+        OUT_OF_BOUNDS,
+        /**
+         * Data of the file partially overlapping the data of another file. Files sharing exactly the same data, as in
+         * deduplicated archives, are not reported.
+         */
+        OVERLAPPING,
+        /**
+         * Data of the file could not be read entirely.
+         */
+        UNREADABLE
+    }
+
+    public boolean isValid()
+    {
+        return issues.isEmpty();
+    }
+}
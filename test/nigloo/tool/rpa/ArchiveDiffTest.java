@@ -0,0 +1,123 @@
+package nigloo.tool.rpa;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArchiveDiffTest
+{
+    @TempDir
+    Path dir;
+
+    private Path createArchive(String name, Map<String, String> files) throws IOException
+    {
+        Path file = dir.resolve(name);
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            for (Map.Entry<String, String> entry : files.entrySet()) {
+                archive.add(Path.of(entry.getKey()), entry.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+            archive.save(file);
+        }
+        return file;
+    }
+
+    @Test
+    void deltaRoundTrip() throws IOException
+    {
+        Path oldFile = createArchive("old.rpa", Map.of("same.txt", "same", "changed.txt", "old", "removed.txt", "x",
+                                                       ArchiveDiff.MANIFEST_NAME, "removed anyway"));
+        Path newFile = createArchive("new.rpa", Map.of("same.txt", "same", "changed.txt", "new", "added.txt", "y"));
+        Path delta = dir.resolve("delta.rpa");
+        Path rebuilt = dir.resolve("rebuilt.rpa");
+
+        try (RenPyArchive oldArchive = new RenPyArchive(oldFile, null, null, null, false);
+             RenPyArchive newArchive = new RenPyArchive(newFile, null, null, null, false))
+        {
+            ArchiveDiff diff = ArchiveDiff.compare(oldArchive, newArchive);
+            assertEquals(List.of(Path.of("same.txt")), diff.unchanged());
+            diff.writeDelta(newArchive, delta);
+        }
+        ArchiveDiff.apply(oldFile, delta, rebuilt);
+
+        try (RenPyArchive newArchive = new RenPyArchive(newFile, null, null, null, false);
+             RenPyArchive rebuiltArchive = new RenPyArchive(rebuilt, null, null, null, false))
+        {
+            assertEquals(newArchive.list().stream().sorted().toList(),
+                         rebuiltArchive.list().stream().sorted().toList());
+            for (Path filename : newArchive.list()) {
+                assertArrayEquals(newArchive.read(filename), rebuiltArchive.read(filename));
+            }
+        }
+    }
+
+    @Test
+    void manifestNameCollision() throws IOException
+    {
+        Path oldFile = createArchive("old.rpa", Map.of("a.txt", "a"));
+        Path newFile = createArchive("new.rpa", Map.of("a.txt", "a", ArchiveDiff.MANIFEST_NAME, "RPA-DELTA 1\n"));
+
+        try (RenPyArchive oldArchive = new RenPyArchive(oldFile, null, null, null, false);
+             RenPyArchive newArchive = new RenPyArchive(newFile, null, null, null, false))
+        {
+            ArchiveDiff diff = ArchiveDiff.compare(oldArchive, newArchive);
+            assertThrows(IllegalArgumentException.class, () -> diff.writeDelta(newArchive, dir.resolve("delta.rpa")));
+        }
+        assertFalse(dir.resolve("delta.rpa").toFile().exists());
+    }
+
+    @Test
+    void manifestWithBlankLines() throws IOException
+    {
+        Path oldFile = createArchive("old.rpa", Map.of("kept.txt", "kept", "removed.txt", "x"));
+        Path delta = createArchive("delta.rpa", Map.of("added.txt", "added",
+                                                       ArchiveDiff.MANIFEST_NAME, "RPA-DELTA 1\n\n4 kept.txt\n\n"));
+        Path rebuilt = dir.resolve("rebuilt.rpa");
+        ArchiveDiff.apply(oldFile, delta, rebuilt);
+
+        try (RenPyArchive archive = new RenPyArchive(rebuilt, null, null, null, false)) {
+            assertEquals(List.of(Path.of("added.txt"), Path.of("kept.txt")), archive.list().stream().sorted().toList());
+            assertEquals("kept", new String(archive.read(Path.of("kept.txt")), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void applyToUnsupportedVersion() throws IOException
+    {
+        // Version 3.2 archives can be read but not saved.
+        Path oldFile = dir.resolve("old.rpa");
+        byte[] content = "a".getBytes(StandardCharsets.UTF_8);
+        long key = 0x42;
+        String header = "RPA-3.2 %016x %08x %08x\n".formatted(0, 0, key);
+        long dataOffset = header.length();
+        try (FileChannel out = FileChannel.open(oldFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+             IndexEncoder index = new IndexEncoder(key))
+        {
+            index.addFile("a.txt", dataOffset, content.length);
+            header = "RPA-3.2 %016x %08x %08x\n".formatted(dataOffset + content.length, 0, key);
+            out.write(ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+            out.write(ByteBuffer.wrap(content));
+            out.write(index.finish());
+        }
+        Path delta = createArchive("delta.rpa", Map.of(ArchiveDiff.MANIFEST_NAME, "RPA-DELTA 1\n1 a.txt\n"));
+        Path rebuilt = dir.resolve("rebuilt.rpa");
+
+        IOException e = assertThrows(IOException.class, () -> ArchiveDiff.apply(oldFile, delta, rebuilt));
+        assertTrue(e.getMessage().contains("version 3.2"));
+        assertFalse(Files.exists(rebuilt));
+    }
+}
@@ -0,0 +1,62 @@
+package nigloo.tool.rpa;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ArchiveIndexTest
+{
+    @Test
+    void fileWithoutParts()
+    {
+        ArchiveIndex.Builder builder = new ArchiveIndex.Builder();
+        builder.addFile("a");
+        builder.addPart(100, 10, new byte[0]);
+        builder.addFile("b");
+        builder.addFile("c");
+        builder.addPart(200, 20, new byte[] {1, 2});
+        builder.addFile("d");
+        ArchiveIndex index = builder.build();
+
+        int b = index.find("b");
+        int d = index.find("d");
+        assertEquals(0, index.nbParts(b));
+        assertEquals(Long.MAX_VALUE, index.offset(b));
+        assertEquals(0, index.size(b));
+        assertEquals(Long.MAX_VALUE, index.offset(d));
+        assertEquals(200, index.offset(index.find("c")));
+        assertEquals(30, index.totalSize(""));
+        assertEquals(4, index.count(""));
+    }
+
+    @Test
+    void removalReturnsCopy()
+    {
+        ArchiveIndex.Builder builder = new ArchiveIndex.Builder();
+        for (int i = 0; i < 100; i++) {
+            builder.addFile(String.format("dir/%03d", i));
+            builder.addPart(i * 10L, 10, new byte[0]);
+        }
+        ArchiveIndex index = builder.build();
+
+        ArchiveIndex removed = index.withRemoved(Path.of("dir/070"));
+        assertSame(removed, removed.withRemoved(Path.of("dir/070")));
+        assertSame(index, index.withRemoved(Path.of("missing")));
+        removed = removed.withRemoved(Path.of("dir/005"));
+
+        assertEquals(100, index.count(""));
+        assertEquals(1000, index.totalSize(""));
+        assertEquals(70, index.find("dir/070"));
+        assertEquals(98, removed.count(""));
+        assertEquals(980, removed.totalSize("dir"));
+        assertEquals(-1, removed.find("dir/070"));
+        assertEquals(71, removed.find("dir/071"));
+        assertEquals(98, removed.ids("dir").length);
+        assertArrayEquals(new int[] {4, 6}, Arrays.copyOfRange(removed.ids("dir"), 4, 6));
+    }
+}
@@ -0,0 +1,131 @@
+package nigloo.tool.rpa;
+
+import nigloo.tool.rpa.ArchiveMetrics.Cache;
+import nigloo.tool.rpa.ArchiveMetrics.Operation;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArchiveMetricsTest
+{
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void resetMetrics()
+    {
+        RenPyArchive.setDefaultMetrics(null);
+    }
+
+    private Path createArchive() throws IOException
+    {
+        Path file = dir.resolve("archive.rpa");
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            archive.add(Path.of("a.bin"), new byte[100]);
+            archive.add(Path.of("b.bin"), new byte[200]);
+            archive.save(file);
+        }
+        return file;
+    }
+
+    @Test
+    void statistics() throws IOException
+    {
+        Path file = createArchive();
+        ArchiveStatistics stats = new ArchiveStatistics();
+        RenPyArchive.setDefaultMetrics(stats);
+
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            assertSame(stats, archive.getMetrics());
+            assertEquals(1, stats.getLatency(Operation.LOAD).getCount());
+            assertEquals(Files.size(file), stats.getBytes(Operation.LOAD));
+            assertEquals(1, stats.getLatency(Operation.INDEX_DECODE).getCount());
+
+            stats.reset();
+            archive.read(Path.of("a.bin"));
+            archive.read(Path.of("b.bin"));
+            assertEquals(2, stats.getLatency(Operation.READ).getCount());
+            assertEquals(300, stats.getBytes(Operation.READ));
+            assertEquals(2, stats.getPositionalReads());
+            assertEquals(300, stats.getBytesRead());
+
+            stats.reset();
+            archive.setContentCache(new ContentCache(1024));
+            archive.read(Path.of("a.bin"));
+            archive.read(Path.of("a.bin"));
+            assertEquals(1, stats.getMisses(Cache.CONTENT));
+            assertEquals(1, stats.getHits(Cache.CONTENT));
+            assertEquals(1, stats.getPositionalReads());
+            assertEquals(200, stats.getBytes(Operation.READ));
+
+            stats.reset();
+            archive.extract(Path.of("b.bin"), dir.resolve("b.bin"));
+            assertEquals(1, stats.getLatency(Operation.EXTRACT).getCount());
+            assertEquals(200, stats.getBytes(Operation.EXTRACT));
+
+            stats.reset();
+            Path saved = dir.resolve("saved.rpa");
+            archive.save(saved);
+            assertEquals(1, stats.getLatency(Operation.SAVE).getCount());
+            assertEquals(Files.size(saved), stats.getBytes(Operation.SAVE));
+
+            // No listener: nothing is counted anymore.
+            archive.setMetrics(null);
+            assertSame(ArchiveMetrics.NONE, archive.getMetrics());
+            stats.reset();
+            archive.read(Path.of("b.bin"));
+            assertEquals(0, stats.getLatency(Operation.READ).getCount());
+            assertEquals(0, stats.getPositionalReads());
+        }
+
+        // Reads from the mapping are not I/O calls.
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false, true)) {
+            stats.reset();
+            archive.read(Path.of("a.bin"));
+            assertEquals(100, stats.getBytes(Operation.READ));
+            assertEquals(0, stats.getPositionalReads());
+        }
+    }
+
+    @Test
+    void latencyHistogram()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getMean());
+
+        for (long nanos = 1; nanos <= 1000; nanos++) {
+            histogram.record(nanos * 1000);
+        }
+        histogram.record(-5);
+        assertEquals(1001, histogram.getCount());
+        assertEquals(500_500_000, histogram.getTotal());
+        assertEquals(1_000_000, histogram.getMax());
+        assertEquals(500_500_000 / 1001.0, histogram.getMean());
+
+        // Percentiles are rounded up to their bucket bound, at most 12.5% above the exact value.
+        assertEquals(0, histogram.getPercentile(0));
+        for (double percentile : new double[] {10, 50, 90, 99}) {
+            long exact = (long) Math.ceil(percentile / 100 * 1001) * 1000 - 1000;
+            long value = histogram.getPercentile(percentile);
+            assertTrue(value >= exact && value <= exact * 1.125, percentile+"%: "+value+" for "+exact);
+        }
+        assertEquals(1_000_000, histogram.getPercentile(100));
+        assertThrows(IllegalArgumentException.class, () -> histogram.getPercentile(101));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+}
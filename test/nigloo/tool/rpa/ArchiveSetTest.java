@@ -0,0 +1,106 @@
+package nigloo.tool.rpa;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArchiveSetTest
+{
+    private static final Path SHARED = Path.of("dir/shared.txt");
+
+    @TempDir
+    Path dir;
+
+    private static byte[] bytes(String s)
+    {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private Path createArchive(String name) throws IOException
+    {
+        Path file = dir.resolve(name+".rpa");
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            archive.add(SHARED, bytes("from "+name));
+            archive.add(Path.of("only-"+name+".txt"), bytes(name));
+            archive.save(file);
+        }
+        return file;
+    }
+
+    @Test
+    void overrideOrder() throws IOException
+    {
+        Path a = createArchive("a");
+        Path b = createArchive("b");
+        Files.write(dir.resolve("not-an-archive.txt"), bytes("ignored"));
+
+        // Ren'Py order: by reverse name, so b hides a.
+        try (ArchiveSet set = ArchiveSet.open(dir, false, null)) {
+            assertEquals(2, set.getArchives().size());
+            assertTrue(set.getArchives().get(0).hasFile(Path.of("only-b.txt")));
+            assertTrue(set.getArchives().get(1).hasFile(Path.of("only-a.txt")));
+            assertEquals(Set.of(SHARED, Path.of("only-a.txt"), Path.of("only-b.txt")), Set.copyOf(set.list()));
+            assertArrayEquals(bytes("from b"), set.read(SHARED));
+            assertEquals(ByteBuffer.wrap(bytes("from b")), set.slice(SHARED));
+            try (InputStream in = set.openStream(SHARED)) {
+                assertArrayEquals(bytes("from b"), in.readAllBytes());
+            }
+            assertArrayEquals(bytes("a"), set.read(Path.of("only-a.txt")));
+            assertSame(set.getArchives().get(1), set.getArchive(Path.of("only-a.txt")));
+            assertNull(set.getArchive(Path.of("missing.txt")));
+            assertThrows(NoSuchElementException.class, () -> set.read(Path.of("missing.txt")));
+        }
+
+        // Explicit order: the first archive wins.
+        try (RenPyArchive archiveA = new RenPyArchive(a, null, null, null, false);
+             RenPyArchive archiveB = new RenPyArchive(b, null, null, null, false);
+             ArchiveSet set = new ArchiveSet(List.of(archiveA, archiveB)))
+        {
+            assertArrayEquals(bytes("from a"), set.read(SHARED));
+            assertSame(archiveA, set.getArchive(SHARED));
+        }
+    }
+
+    @Test
+    void refresh() throws IOException
+    {
+        try (RenPyArchive archiveA = new RenPyArchive(createArchive("a"), null, null, null, false);
+             RenPyArchive archiveB = new RenPyArchive(createArchive("b"), null, null, null, false))
+        {
+            ArchiveSet set = new ArchiveSet(List.of(archiveB, archiveA));
+            archiveA.add(Path.of("added.txt"), bytes("added"));
+            archiveB.remove(SHARED);
+
+            // The set still uses its old index.
+            assertFalse(set.hasFile(Path.of("added.txt")));
+            assertSame(archiveB, set.getArchive(SHARED));
+
+            set.refresh();
+            assertTrue(set.hasFile(Path.of("added.txt")));
+            assertArrayEquals(bytes("added"), set.read(Path.of("added.txt")));
+            assertSame(archiveA, set.getArchive(SHARED));
+            assertArrayEquals(bytes("from a"), set.read(SHARED));
+
+            // The archives given to the constructor are not closed with the set.
+            set.close();
+            assertArrayEquals(bytes("b"), archiveB.read(Path.of("only-b.txt")));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package nigloo.tool.rpa;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ContentCacheTest
+{
+    @TempDir
+    Path dir;
+
+    private static byte[] content(char c, int length)
+    {
+        return String.valueOf(c).repeat(length).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private Path createArchive() throws IOException
+    {
+        Path file = dir.resolve("archive.rpa");
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            archive.add(Path.of("a.txt"), content('a', 10));
+            archive.add(Path.of("b.txt"), content('b', 10));
+            archive.add(Path.of("c.txt"), content('c', 10));
+            archive.add(Path.of("large.txt"), content('l', 30));
+            archive.save(file);
+        }
+        return file;
+    }
+
+    @Test
+    void leastRecentlyUsedEviction() throws IOException
+    {
+        ContentCache cache = new ContentCache(25);
+        try (RenPyArchive archive = new RenPyArchive(createArchive(), null, null, null, false)) {
+            archive.setContentCache(cache);
+
+            archive.read(Path.of("a.txt"));
+            archive.read(Path.of("b.txt"));
+            assertEquals(new ContentCache.Stats(0, 2, 0, 2, 20), cache.getStats());
+
+            // a is now the most recently used, so c evicts b.
+            assertArrayEquals(content('a', 10), archive.read(Path.of("a.txt")));
+            archive.read(Path.of("c.txt"));
+            assertEquals(new ContentCache.Stats(1, 3, 1, 2, 20), cache.getStats());
+
+            assertArrayEquals(content('a', 10), archive.read(Path.of("a.txt")));
+            assertArrayEquals(content('c', 10), archive.read(Path.of("c.txt")));
+            assertArrayEquals(content('b', 10), archive.read(Path.of("b.txt")));
+            assertEquals(new ContentCache.Stats(3, 4, 2, 2, 20), cache.getStats());
+        }
+    }
+
+    @Test
+    void sizeBound() throws IOException
+    {
+        ContentCache cache = new ContentCache(25);
+        try (RenPyArchive archive = new RenPyArchive(createArchive(), null, null, null, false)) {
+            archive.setContentCache(cache);
+
+            archive.read(Path.of("a.txt"));
+            // Larger than the whole cache: returned, but neither cached nor evicting anything.
+            assertArrayEquals(content('l', 30), archive.read(Path.of("large.txt")));
+            assertArrayEquals(content('l', 30), archive.read(Path.of("large.txt")));
+            assertEquals(new ContentCache.Stats(0, 3, 0, 1, 10), cache.getStats());
+
+            archive.read(Path.of("b.txt"));
+            archive.read(Path.of("c.txt"));
+            ContentCache.Stats stats = cache.getStats();
+            assertEquals(20, stats.size());
+            assertEquals(2, stats.entries());
+
+            cache.clear();
+            assertEquals(0, cache.getStats().size());
+            assertEquals(0, cache.getStats().entries());
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> new ContentCache(-1));
+        ContentCache disabled = new ContentCache(0);
+        try (RenPyArchive archive = new RenPyArchive(dir.resolve("archive.rpa"), null, null, null, false)) {
+            archive.setContentCache(disabled);
+            assertArrayEquals(content('a', 10), archive.read(Path.of("a.txt")));
+            assertEquals(0, disabled.getStats().size());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package nigloo.tool.rpa;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IndexCacheTest
+{
+    private static final byte[] HELLO = "hello".getBytes(StandardCharsets.US_ASCII);
+
+    @TempDir
+    Path dir;
+
+    // Index cache lookups, true for a hit. The lookup happens while opening, so it is only seen by the default metrics.
+    private final List<Boolean> lookups = new ArrayList<>();
+
+    @BeforeEach
+    void recordLookups()
+    {
+        RenPyArchive.setDefaultMetrics(new ArchiveMetrics()
+        {
+            @Override
+            public synchronized void cacheAccess(Path archive, Cache cache, boolean hit)
+            {
+                if (cache == Cache.INDEX) {
+                    lookups.add(hit);
+                }
+            }
+        });
+    }
+
+    @AfterEach
+    void resetMetrics()
+    {
+        RenPyArchive.setDefaultMetrics(null);
+    }
+
+    private Path createArchive() throws IOException
+    {
+        Path file = dir.resolve("archive.rpa");
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            archive.add(Path.of("hello.txt"), HELLO);
+            archive.add(Path.of("dir/other.txt"), "other".getBytes(StandardCharsets.US_ASCII));
+            archive.save(file);
+        }
+        return file;
+    }
+
+    private RenPyArchive open(Path file, Path cacheDir) throws IOException
+    {
+        return new RenPyArchive(file, null, null, null, false, false, cacheDir);
+    }
+
+    @Test
+    void cacheHit() throws IOException
+    {
+        Path file = createArchive();
+        Path cacheDir = dir.resolve("cache");
+
+        for (int i = 0; i < 2; i++) {
+            try (RenPyArchive archive = open(file, cacheDir)) {
+                assertEquals(2, archive.list().size());
+                assertArrayEquals(HELLO, archive.read(Path.of("hello.txt")));
+                assertArrayEquals("other".getBytes(StandardCharsets.US_ASCII), archive.read(Path.of("dir/other.txt")));
+            }
+        }
+        assertEquals(List.of(false, true), lookups);
+        try (var cacheFiles = Files.list(cacheDir)) {
+            assertEquals(1, cacheFiles.count());
+        }
+    }
+
+    @Test
+    void invalidatedWhenSizeChanges() throws IOException
+    {
+        Path file = createArchive();
+        Path cacheDir = dir.resolve("cache");
+        open(file, cacheDir).close();
+
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            archive.add(Path.of("appended.txt"), HELLO);
+            archive.appendSave();
+        }
+        lookups.clear();
+
+        for (int i = 0; i < 2; i++) {
+            try (RenPyArchive archive = open(file, cacheDir)) {
+                assertEquals(3, archive.list().size());
+                assertArrayEquals(HELLO, archive.read(Path.of("appended.txt")));
+            }
+        }
+        assertEquals(List.of(false, true), lookups);
+    }
+
+    @Test
+    void invalidatedWhenModificationTimeChanges() throws IOException
+    {
+        Path file = createArchive();
+        Path cacheDir = dir.resolve("cache");
+        open(file, cacheDir).close();
+
+        FileTime lastModified = Files.getLastModifiedTime(file);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified.toMillis() + 60_000));
+        lookups.clear();
+
+        for (int i = 0; i < 2; i++) {
+            try (RenPyArchive archive = open(file, cacheDir)) {
+                assertArrayEquals(HELLO, archive.read(Path.of("hello.txt")));
+            }
+        }
+        assertEquals(List.of(false, true), lookups);
+    }
+
+    @Test
+    void invalidatedWhenHeaderChanges() throws IOException
+    {
+        Path file = createArchive();
+        Path cacheDir = dir.resolve("cache");
+        open(file, cacheDir).close();
+
+        IndexCache.Key key = IndexCache.keyOf(file, firstLine(file));
+        Path cacheFile = IndexCache.cacheFile(cacheDir, key);
+        assertTrue(Files.exists(cacheFile));
+        assertNotNull(IndexCache.read(cacheFile, key));
+
+        // Same file, size and modification time: only the header differs.
+        IndexCache.Key otherHeader = new IndexCache.Key(key.archive(), key.size(), key.lastModified(),
+                                                        key.header().replace("RPA-3.0", "RPA-2.0"));
+        assertNull(IndexCache.read(cacheFile, otherHeader));
+    }
+
+    private static String firstLine(Path file) throws IOException
+    {
+        byte[] content = Files.readAllBytes(file);
+        int end = 0;
+        while (content[end] != '\n') {
+            end++;
+        }
+        return new String(content, 0, end, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,61 @@
+package nigloo.tool.rpa;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class IndexDecoderTest
+{
+    private static ArchiveIndex decode(byte[] pickle) throws IOException
+    {
+        ArchiveIndex.Builder builder = new ArchiveIndex.Builder();
+        IndexDecoder.decode(new ByteArrayInputStream(pickle), 0, builder);
+        return builder.build();
+    }
+
+    private static byte[] pickle(int... bytes)
+    {
+        byte[] pickle = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            pickle[i] = (byte) bytes[i];
+        }
+        return pickle;
+    }
+
+    @Test
+    void decodesIndex() throws IOException
+    {
+        // {'a': [(10, 5, b'')]} pickled with protocol 4
+        ArchiveIndex index = decode(pickle(0x80, 4, '}', 0x94, 0x8c, 1, 'a', 0x94, ']', 0x94,
+                                           'K', 10, 'K', 5, 'C', 0, 0x87, 0x94, 'a', 's', '.'));
+        assertEquals(1, index.count(""));
+        assertEquals(10, index.offset(index.find("a")));
+        assertEquals(5, index.size(index.find("a")));
+    }
+
+    @Test
+    void malformedOpcodeSequences()
+    {
+        byte[][] pickles = {
+            // MEMOIZE on an empty stack, then behind a mark
+            pickle(0x80, 4, 0x94, '}', '.'),
+            pickle(0x80, 4, '}', '(', 0x94, '.'),
+            // Negative memo indexes
+            "}p-1\n.".getBytes(StandardCharsets.US_ASCII),
+            "}g-1\n.".getBytes(StandardCharsets.US_ASCII),
+            // TUPLE1 on an empty stack and SETITEM across a mark
+            pickle(0x80, 2, 0x85, '.'),
+            pickle(0x80, 2, '}', 'X', 1, 0, 0, 0, 'a', '(', ']', 's', '.'),
+            // LONG4 with a negative length
+            pickle(0x80, 2, 0x8b, 0xff, 0xff, 0xff, 0xff, '.'),
+        };
+        for (byte[] pickle : pickles) {
+            assertThrows(IndexDecoder.UnsupportedPickleException.class, () -> decode(pickle));
+        }
+    }
+}
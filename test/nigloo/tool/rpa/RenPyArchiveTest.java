@@ -0,0 +1,794 @@
+package nigloo.tool.rpa;
+
+import nigloo.tool.rpa.RenPyArchive.IndexEntry;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RenPyArchiveTest
+{
+    private static final long KEY = 0xDEADBEEFL;
+    private static final byte[] HELLO = "hello".getBytes(StandardCharsets.US_ASCII);
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Write a v3 archive whose index has files without any part, before another file and as the last file.
+     */
+    private Path createArchiveWithEmptyEntries() throws IOException
+    {
+        Path file = dir.resolve("empty-entries.rpa");
+        long dataOffset = 34;
+        long indexOffset = dataOffset + HELLO.length;
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+             IndexEncoder index = new IndexEncoder(KEY))
+        {
+            index.addFile("a/empty.txt", List.of());
+            index.addFile("b/hello.txt", dataOffset, HELLO.length);
+            index.addFile("z/empty.txt", List.of());
+            String header = String.format("RPA-3.0 %016x %08x\n", indexOffset, KEY);
+            out.write(ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+            out.write(ByteBuffer.wrap(HELLO));
+            out.write(index.finish());
+        }
+        return file;
+    }
+
+    /**
+     * Write a v3 archive with multi-part entries and prefixes, parts not being in offset order.
+     */
+    private Path createArchiveWithMultiPartEntries() throws IOException
+    {
+        Path file = dir.resolve("multi-part.rpa");
+        byte[] data = "0123456789abcdefghijKLMNOPQRST".getBytes(StandardCharsets.US_ASCII);
+        long dataOffset = 34;
+        long indexOffset = dataOffset + data.length;
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+             IndexEncoder index = new IndexEncoder(KEY))
+        {
+            // Part lengths include their prefix.
+            index.addFile("multi.txt", List.of(new IndexEntry(dataOffset + 10, 7, bytes("P1")),
+                                               new IndexEntry(dataOffset, 7, bytes("XYZ")),
+                                               new IndexEntry(dataOffset + 6, 4, new byte[0])));
+            index.addFile("prefixed.txt", List.of(new IndexEntry(dataOffset + 15, 7, bytes("hi"))));
+            index.addFile("plain.txt", dataOffset + 20, 10);
+            String header = String.format("RPA-3.0 %016x %08x\n", indexOffset, KEY);
+            out.write(ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+            out.write(ByteBuffer.wrap(data));
+            out.write(index.finish());
+        }
+        return file;
+    }
+
+    private static byte[] bytes(String s)
+    {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void multiPartEntries() throws IOException
+    {
+        Map<Path, byte[]> expected = Map.of(Path.of("multi.txt"), bytes("P1abcdeXYZ01236789"),
+                                            Path.of("prefixed.txt"), bytes("hifghij"),
+                                            Path.of("plain.txt"), bytes("KLMNOPQRST"));
+        Path file = createArchiveWithMultiPartEntries();
+        Path saved = dir.resolve("saved.rpa");
+        for (Path archiveFile : List.of(file, saved)) {
+            for (boolean memoryMapped : new boolean[] {false, true}) {
+                try (RenPyArchive archive = new RenPyArchive(archiveFile, null, null, null, false, memoryMapped)) {
+                    for (Map.Entry<Path, byte[]> entry : expected.entrySet()) {
+                        Path filename = entry.getKey();
+                        byte[] content = entry.getValue();
+                        assertEquals(content.length, archive.size(filename));
+                        assertArrayEquals(content, archive.read(filename));
+                        assertEquals(ByteBuffer.wrap(content), archive.slice(filename));
+                        try (InputStream in = archive.openStream(filename)) {
+                            assertArrayEquals(content, in.readAllBytes());
+                        }
+                        try (SeekableByteChannel channel = archive.openChannel(filename)) {
+                            ByteBuffer tail = ByteBuffer.allocate(content.length - 3);
+                            channel.position(3);
+                            while (tail.hasRemaining() && channel.read(tail) >= 0) {
+                            }
+                            assertArrayEquals(Arrays.copyOfRange(content, 3, content.length), tail.array());
+                        }
+                        Path extracted = dir.resolve("single-"+archiveFile.getFileName()+"-"+memoryMapped).resolve(filename);
+                        Files.createDirectories(extracted.getParent());
+                        archive.extract(filename, extracted);
+                        assertArrayEquals(content, Files.readAllBytes(extracted));
+                    }
+
+                    Map<Path, byte[]> read = new HashMap<>();
+                    archive.readAll(archive.list(), (filename, content) -> {
+                        byte[] copy = new byte[content.remaining()];
+                        content.get(copy);
+                        read.put(filename, copy);
+                    });
+                    assertEquals(expected.keySet(), read.keySet());
+                    expected.forEach((filename, content) -> assertArrayEquals(content, read.get(filename)));
+
+                    Path output = dir.resolve("all-"+archiveFile.getFileName()+"-"+memoryMapped);
+                    assertTrue(archive.extractAll(output, null).stream().allMatch(ExtractResult::isSuccess));
+                    for (Map.Entry<Path, byte[]> entry : expected.entrySet()) {
+                        assertArrayEquals(entry.getValue(), Files.readAllBytes(output.resolve(entry.getKey())));
+                    }
+                    assertTrue(archive.verify().isValid());
+
+                    if (archiveFile == file && !memoryMapped) {
+                        archive.save(saved);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void zeroPartEntries() throws IOException
+    {
+        Path file = createArchiveWithEmptyEntries();
+        for (boolean memoryMapped : new boolean[] {false, true}) {
+            try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false, memoryMapped)) {
+                Path empty = Path.of("z/empty.txt");
+                assertEquals(3, archive.list().size());
+                assertEquals(0, archive.size(empty));
+                assertEquals(0, archive.read(empty).length);
+                assertEquals(0, archive.slice(empty).remaining());
+                assertArrayEquals(HELLO, archive.read(Path.of("b/hello.txt")));
+                try (InputStream in = archive.openStream(empty)) {
+                    assertEquals(0, in.readAllBytes().length);
+                }
+
+                Map<Path, Integer> read = new HashMap<>();
+                archive.readAll(archive.list(), (filename, content) -> read.put(filename, content.remaining()));
+                assertEquals(Map.of(Path.of("a/empty.txt"), 0, Path.of("b/hello.txt"), HELLO.length, empty, 0), read);
+
+                Path output = dir.resolve("out-"+memoryMapped);
+                assertTrue(archive.extractAll(output, null).stream().allMatch(ExtractResult::isSuccess));
+                assertEquals(0, Files.size(output.resolve("a/empty.txt")));
+                assertArrayEquals(HELLO, Files.readAllBytes(output.resolve("b/hello.txt")));
+
+                assertTrue(archive.verify().isValid());
+
+                archive.setContentCache(new ContentCache(1 << 20));
+                assertEquals(0, archive.slice(empty).remaining());
+            }
+        }
+    }
+
+    @Test
+    void tooLargeToReadInMemory() throws IOException
+    {
+        Path file = dir.resolve("large.rpa");
+        long dataOffset = 34;
+        long indexOffset = dataOffset + HELLO.length;
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+             IndexEncoder index = new IndexEncoder(KEY))
+        {
+            // The index only claims the data, which is never read.
+            index.addFile("large.bin", dataOffset, 3L << 30);
+            String header = String.format("RPA-3.0 %016x %08x\n", indexOffset, KEY);
+            out.write(ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+            out.write(ByteBuffer.wrap(HELLO));
+            out.write(index.finish());
+        }
+
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            Path large = Path.of("large.bin");
+            assertEquals(3L << 30, archive.size(large));
+            IOException e = assertThrows(IOException.class, () -> archive.read(large));
+            assertTrue(e.getMessage().contains("openStream"));
+            assertThrows(IOException.class, () -> archive.slice(large));
+        }
+    }
+
+    @Test
+    void zeroPartEntriesSurviveSave() throws IOException
+    {
+        Path saved = dir.resolve("saved.rpa");
+        try (RenPyArchive archive = new RenPyArchive(createArchiveWithEmptyEntries(), null, null, null, false)) {
+            archive.save(saved);
+        }
+        try (RenPyArchive archive = new RenPyArchive(saved, null, null, null, false)) {
+            assertEquals(3, archive.list().size());
+            assertEquals(0, archive.size(Path.of("a/empty.txt")));
+            assertArrayEquals(HELLO, archive.read(Path.of("b/hello.txt")));
+        }
+    }
+
+    @Test
+    void concurrentReads() throws Exception
+    {
+        Path file = dir.resolve("concurrent.rpa");
+        Random random = new Random(42);
+        Map<Path, byte[]> expected = new HashMap<>();
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            for (int i = 0; i < 64; i++) {
+                byte[] content = new byte[random.nextInt(1, 20_000)];
+                random.nextBytes(content);
+                expected.put(Path.of("file"+i+".bin"), content);
+                archive.add(Path.of("file"+i+".bin"), content);
+            }
+            archive.save(file);
+        }
+
+        for (boolean memoryMapped : new boolean[] {false, true}) {
+            try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false, memoryMapped)) {
+                List<Callable<Void>> readers = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    readers.add(() -> {
+                        for (int round = 0; round < 4; round++) {
+                            for (Map.Entry<Path, byte[]> entry : expected.entrySet()) {
+                                assertArrayEquals(entry.getValue(), archive.read(entry.getKey()));
+                                assertEquals(ByteBuffer.wrap(entry.getValue()), archive.slice(entry.getKey()));
+                            }
+                        }
+                        return null;
+                    });
+                }
+                ExecutorService executor = Executors.newFixedThreadPool(readers.size());
+                try {
+                    for (Future<Void> result : executor.invokeAll(readers)) {
+                        result.get();
+                    }
+                }
+                finally {
+                    executor.shutdown();
+                }
+            }
+        }
+    }
+
+    @Test
+    void readAllOrder() throws IOException
+    {
+        Path file = dir.resolve("order.rpa");
+        Map<Path, String> contents = new HashMap<>();
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            for (int i = 0; i < 6; i++) {
+                contents.put(Path.of("file"+i+".txt"), "content of file "+i);
+                archive.add(Path.of("file"+i+".txt"), bytes("content of file "+i));
+            }
+            archive.save(file);
+        }
+        contents.put(Path.of("stored.txt"), "stored");
+
+        for (long maxGap : new long[] {0, RenPyArchive.DEFAULT_MAX_GAP}) {
+            try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+                Path cachedFile = Path.of("file3.txt");
+                archive.setContentCache(new ContentCache(1024));
+                archive.read(cachedFile);
+                Path storedFile = Path.of("stored.txt");
+                archive.add(storedFile, bytes("stored"));
+
+                List<Path> archived = new ArrayList<>(archive.list());
+                archived.removeAll(List.of(cachedFile, storedFile));
+                archived.sort(Comparator.comparingLong(archive::dataOffset));
+                List<Path> expected = new ArrayList<>();
+                expected.add(cachedFile);
+                expected.addAll(archived);
+                expected.add(storedFile);
+
+                List<Path> requested = new ArrayList<>(archive.list());
+                requested.sort(Comparator.reverseOrder());
+                List<Path> order = new ArrayList<>();
+                archive.readAll(requested, (filename, content) -> {
+                    order.add(filename);
+                    byte[] copy = new byte[content.remaining()];
+                    content.get(copy);
+                    assertEquals(contents.get(filename), new String(copy, StandardCharsets.US_ASCII));
+                });
+                assertEquals(expected, order);
+            }
+        }
+    }
+
+    @Test
+    void asyncFailures() throws Exception
+    {
+        Path file = dir.resolve("async.rpa");
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            archive.add(Path.of("hello.txt"), HELLO);
+            archive.save(file);
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            assertArrayEquals(HELLO, archive.readAsync(Path.of("hello.txt")).get());
+            assertInstanceOf(NoSuchElementException.class, failure(archive.readAsync(Path.of("missing.txt"))));
+
+            Path target = dir.resolve("missing-dir").resolve("hello.txt");
+            assertInstanceOf(IOException.class, failure(archive.extractAsync(Path.of("hello.txt"), target)));
+            assertInstanceOf(IOException.class, failure(archive.extractAsync(Path.of("hello.txt"), target, executor)));
+
+            archive.add(Path.of("broken.txt"), () -> {
+                throw new IOException("unreadable source");
+            });
+            Throwable saveFailure = failure(archive.saveAsync(dir.resolve("saved.rpa"), executor));
+            assertInstanceOf(IOException.class, saveFailure);
+            assertEquals("unreadable source", saveFailure.getMessage());
+            archive.remove(Path.of("broken.txt"));
+
+            // The source of a stored file is deleted before it is read.
+            Path source = dir.resolve("source.txt");
+            Files.write(source, HELLO);
+            archive.add(Path.of("source.txt"), source);
+            Files.delete(source);
+            assertInstanceOf(NoSuchFileException.class, failure(archive.readAsync(Path.of("source.txt"), executor)));
+
+            archive.close();
+            assertInstanceOf(IOException.class, failure(archive.readAsync(Path.of("hello.txt"))));
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            // A rejected task completes the future too, rather than throwing.
+            assertInstanceOf(RejectedExecutionException.class, failure(archive.readAsync(Path.of("hello.txt"), executor)));
+        }
+    }
+
+    private static Throwable failure(CompletableFuture<?> future)
+    {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+        assertTrue(future.isCompletedExceptionally());
+        return e.getCause();
+    }
+
+    @Test
+    void appendSaveDeduplicate() throws IOException
+    {
+        Path file = dir.resolve("append.rpa");
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            archive.add(Path.of("existing.txt"), HELLO);
+            archive.save(file);
+        }
+
+        byte[] content = "appended twice".getBytes(StandardCharsets.US_ASCII);
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            archive.add(Path.of("first.txt"), content);
+            archive.add(Path.of("second.txt"), content.clone());
+            archive.add(Path.of("other.txt"), HELLO);
+            archive.appendSave(new SaveOptions().deduplicate(true));
+        }
+
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            assertEquals(4, archive.list().size());
+            assertArrayEquals(HELLO, archive.read(Path.of("existing.txt")));
+            assertArrayEquals(HELLO, archive.read(Path.of("other.txt")));
+            assertArrayEquals(content, archive.read(Path.of("first.txt")));
+            assertArrayEquals(content, archive.read(Path.of("second.txt")));
+            assertEquals(archive.dataOffset(Path.of("first.txt")), archive.dataOffset(Path.of("second.txt")));
+        }
+    }
+
+    @Test
+    void compactMemoryMapped() throws IOException
+    {
+        Path file = dir.resolve("compact.rpa");
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            for (int i = 0; i < 10; i++) {
+                archive.add(Path.of("file"+i), ("content of file "+i).getBytes(StandardCharsets.US_ASCII));
+            }
+            archive.save(file);
+        }
+        long size = Files.size(file);
+
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false, true)) {
+            archive.setContentCache(new ContentCache(1 << 20));
+            assertEquals(17, archive.read(Path.of("file0")).length);
+            for (int i = 0; i < 10; i += 2) {
+                archive.remove(Path.of("file"+i));
+            }
+            archive.compact();
+            assertFalse(Files.exists(Compactor.journalFile(file)));
+            assertEquals(5, archive.list().size());
+            for (int i = 1; i < 10; i += 2) {
+                assertEquals("content of file "+i, new String(archive.read(Path.of("file"+i)), StandardCharsets.US_ASCII));
+            }
+        }
+        assertTrue(Files.size(file) < size);
+    }
+
+    @Test
+    void mappedSlicesPreventRewritingInPlace() throws IOException
+    {
+        Path file = dir.resolve("mapped.rpa");
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            archive.add(Path.of("hello.txt"), HELLO);
+            archive.add(Path.of("other.txt"), "other".getBytes(StandardCharsets.US_ASCII));
+            archive.save(file);
+        }
+
+        ByteBuffer slice;
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false, true)) {
+            // Nothing was handed out yet: the mappings are the archive's own.
+            archive.remove(Path.of("other.txt"));
+            archive.compact();
+            assertEquals(1, archive.list().size());
+
+            slice = archive.slice(Path.of("hello.txt"));
+            assertEquals(ByteBuffer.wrap(HELLO), slice);
+            Map<Path, ByteBuffer> read = new HashMap<>();
+            archive.readAll(archive.list(), (filename, content) -> read.put(filename, content));
+            assertEquals(Map.of(Path.of("hello.txt"), ByteBuffer.wrap(HELLO)), read);
+
+            archive.add(Path.of("added.txt"), HELLO);
+            assertThrows(IllegalStateException.class, archive::compact);
+            assertThrows(IllegalStateException.class, () -> archive.save(null));
+            assertThrows(IllegalStateException.class, () -> archive.save(file));
+            // Appending does not move the existing data.
+            archive.appendSave();
+            archive.save(dir.resolve("copy.rpa"));
+        }
+        // Still valid after the archive is closed.
+        assertEquals(ByteBuffer.wrap(HELLO), slice);
+
+        try (RenPyArchive archive = new RenPyArchive(dir.resolve("copy.rpa"), null, null, null, false)) {
+            assertEquals(2, archive.list().size());
+            assertArrayEquals(HELLO, archive.read(Path.of("added.txt")));
+        }
+    }
+
+    @Test
+    void interruptedCompactionIsNotResumedOnLoad() throws IOException
+    {
+        Path file = createArchiveWithEmptyEntries();
+        byte[] content = Files.readAllBytes(file);
+        Path journal = Compactor.journalFile(file);
+        Files.write(journal, new byte[] {1, 2, 3});
+
+        IOException e = assertThrows(IOException.class, () -> new RenPyArchive(file, null, null, null, false).close());
+        assertTrue(e.getMessage().contains("resumeCompaction"));
+        assertArrayEquals(content, Files.readAllBytes(file));
+        assertTrue(Files.exists(journal));
+
+        // The journal is only read when resuming explicitly.
+        assertThrows(IOException.class, () -> RenPyArchive.resumeCompaction(file));
+        Files.delete(journal);
+        assertFalse(RenPyArchive.resumeCompaction(file));
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            assertEquals(3, archive.list().size());
+        }
+    }
+
+    @Test
+    void failedSaveLeavesArchiveReadable() throws IOException
+    {
+        Path file = dir.resolve("source.rpa");
+        byte[] content = new byte[32 * 1024];
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            for (int i = 0; i < 200; i++) {
+                content[0] = (byte) i;
+                archive.add(Path.of("file"+i), content.clone());
+            }
+            archive.save(file);
+        }
+
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            for (int attempt = 0; attempt < 5; attempt++) {
+                // The writer fails while the workers are still reading the following files from the archive.
+                SaveOptions options = new SaveOptions().parallelism(4).progress((filename, size) -> {
+                    throw new IllegalStateException("boom");
+                });
+                assertThrows(IllegalStateException.class, () -> archive.save(dir.resolve("target.rpa"), options));
+                for (int i = 0; i < 200; i++) {
+                    assertEquals((byte) i, archive.read(Path.of("file"+i))[0]);
+                }
+            }
+        }
+        assertFalse(Files.exists(dir.resolve("target.rpa")));
+    }
+
+    @Test
+    void extractAllProgressFailure() throws IOException
+    {
+        Path file = dir.resolve("extract.rpa");
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            for (int i = 0; i < 50; i++) {
+                archive.add(Path.of("file"+i), HELLO);
+            }
+            archive.save(file);
+        }
+
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            ExtractOptions options = new ExtractOptions().parallelism(4).progress(result -> {
+                if (result.filename().equals(Path.of("file7"))) {
+                    throw new IllegalStateException("progress failed");
+                }
+            });
+            IllegalStateException e = assertThrows(IllegalStateException.class,
+                                                   () -> archive.extractAll(dir.resolve("out"), options));
+            assertEquals("progress failed", e.getMessage());
+        }
+    }
+
+    /**
+     * Two different contents of the same length with the same CRC32C, found by birthday search.
+     */
+    private static byte[][] crcCollision()
+    {
+        Random random = new Random(0);
+        Map<Long, byte[]> seen = new HashMap<>();
+        CRC32C crc = new CRC32C();
+        while (true) {
+            byte[] content = new byte[8];
+            random.nextBytes(content);
+            crc.reset();
+            crc.update(content);
+            byte[] previous = seen.putIfAbsent(crc.getValue(), content);
+            if (previous != null && !Arrays.equals(previous, content)) {
+                return new byte[][] {previous, content};
+            }
+        }
+    }
+
+    @Test
+    void saveDeduplicateHashCollision() throws IOException
+    {
+        byte[][] collision = crcCollision();
+        Path file = dir.resolve("collision.rpa");
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            archive.add(Path.of("a"), collision[0]);
+            archive.add(Path.of("b"), collision[1]);
+            archive.add(Path.of("c"), collision[0].clone());
+            archive.save(file, true);
+        }
+
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            assertArrayEquals(collision[0], archive.read(Path.of("a")));
+            assertArrayEquals(collision[1], archive.read(Path.of("b")));
+            assertArrayEquals(collision[0], archive.read(Path.of("c")));
+            assertNotEquals(archive.dataOffset(Path.of("a")), archive.dataOffset(Path.of("b")));
+            assertEquals(archive.dataOffset(Path.of("a")), archive.dataOffset(Path.of("c")));
+        }
+    }
+
+    @Test
+    void saveDeduplicateStreamedDuplicate() throws IOException
+    {
+        byte[] large = new byte[256 * 1024];
+        new Random(1).nextBytes(large);
+        Path base = dir.resolve("base.rpa");
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            archive.add(Path.of("original.bin"), large);
+            archive.save(base);
+        }
+
+        Path plain = dir.resolve("plain.rpa");
+        Path deduplicated = dir.resolve("deduplicated.rpa");
+        try (RenPyArchive archive = new RenPyArchive(base, null, null, null, false)) {
+            archive.add(Path.of("copy.bin"), () -> new ByteArrayInputStream(large));
+            archive.save(plain);
+        }
+        try (RenPyArchive archive = new RenPyArchive(base, null, null, null, false)) {
+            // Added files are written after the archived ones: the duplicate is streamed last, found, then dropped by
+            // rewinding the output and truncating it.
+            archive.add(Path.of("copy.bin"), () -> new ByteArrayInputStream(large));
+            archive.save(deduplicated, true);
+        }
+
+        try (RenPyArchive archive = new RenPyArchive(deduplicated, null, null, null, false)) {
+            assertEquals(2, archive.list().size());
+            assertArrayEquals(large, archive.read(Path.of("original.bin")));
+            assertArrayEquals(large, archive.read(Path.of("copy.bin")));
+            assertEquals(archive.dataOffset(Path.of("original.bin")), archive.dataOffset(Path.of("copy.bin")));
+            assertTrue(archive.verify().isValid());
+        }
+        assertTrue(Files.size(deduplicated) <= Files.size(plain) - large.length);
+    }
+
+    private List<Path> tempFiles() throws IOException
+    {
+        try (var files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".tmp")).toList();
+        }
+    }
+
+    @Test
+    void parallelSaveIsDeterministic() throws IOException
+    {
+        Path file = dir.resolve("source.rpa");
+        Random random = new Random(7);
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            for (int i = 0; i < 32; i++) {
+                byte[] content = new byte[random.nextInt(0, 50_000)];
+                random.nextBytes(content);
+                archive.add(Path.of("archived/file"+i+".bin"), content);
+            }
+            archive.save(file);
+        }
+
+        Path source = dir.resolve("source.bin");
+        byte[] large = new byte[3 * 1024 * 1024];
+        random.nextBytes(large);
+        Files.write(source, large);
+        Map<Path, byte[]> stored = new LinkedHashMap<>();
+        for (int i = 0; i < 16; i++) {
+            byte[] content = new byte[random.nextInt(0, 10_000)];
+            random.nextBytes(content);
+            stored.put(Path.of("stored/file"+i+".bin"), content);
+        }
+
+        for (boolean deduplicate : new boolean[] {false, true}) {
+            byte[] expected = null;
+            for (int parallelism : new int[] {1, 2, 8}) {
+                // A save reloads the archive from its target, start each one from the same state.
+                Path saved = dir.resolve("saved-"+parallelism+"-"+deduplicate+".rpa");
+                try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+                    stored.forEach(archive::add);
+                    archive.add(Path.of("stored/duplicate.bin"), archive.read(Path.of("archived/file3.bin")));
+                    archive.add(Path.of("stored/path.bin"), source);
+                    archive.add(Path.of("stored/streamed.bin"), () -> new ByteArrayInputStream(large));
+                    archive.save(saved, new SaveOptions().parallelism(parallelism).deduplicate(deduplicate));
+                }
+                if (expected == null) {
+                    expected = Files.readAllBytes(saved);
+                }
+                else {
+                    assertArrayEquals(expected, Files.readAllBytes(saved));
+                }
+            }
+        }
+    }
+
+    @Test
+    void verifyDetectsCorruptedEntries() throws Exception
+    {
+        Path file = dir.resolve("corrupted.rpa");
+        byte[] data = bytes("0123456789abcdefghij");
+        long dataOffset = 34;
+        long indexOffset = dataOffset + data.length;
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+             IndexEncoder index = new IndexEncoder(KEY))
+        {
+            index.addFile("good.txt", dataOffset, 5);
+            // Same data as good.txt, as in a deduplicated archive.
+            index.addFile("shared.txt", dataOffset, 5);
+            index.addFile("overlap1.txt", dataOffset + 10, 4);
+            index.addFile("overlap2.txt", dataOffset + 12, 4);
+            index.addFile("header.txt", dataOffset - 4, 4);
+            index.addFile("beyond.txt", indexOffset + 1_000_000, 10);
+            String header = String.format("RPA-3.0 %016x %08x\n", indexOffset, KEY);
+            out.write(ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+            out.write(ByteBuffer.wrap(data));
+            out.write(index.finish());
+        }
+
+        byte[] digest;
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            VerifyReport report = archive.verify(new VerifyOptions().digest("SHA-256").parallelism(2));
+            assertFalse(report.isValid());
+            assertEquals(dataOffset, report.dataStart());
+            assertEquals(indexOffset, report.dataEnd());
+            Map<Path, VerifyResult> results = new HashMap<>();
+            for (VerifyResult result : report.results()) {
+                results.put(result.filename(), result);
+            }
+            assertEquals(6, results.size());
+            assertEquals(Set.of(), results.get(Path.of("good.txt")).issues());
+            assertEquals(Set.of(), results.get(Path.of("shared.txt")).issues());
+            assertEquals(Set.of(VerifyResult.Issue.OVERLAPPING), results.get(Path.of("overlap1.txt")).issues());
+            assertEquals(Set.of(VerifyResult.Issue.OVERLAPPING), results.get(Path.of("overlap2.txt")).issues());
+            assertEquals(Set.of(VerifyResult.Issue.OUT_OF_BOUNDS), results.get(Path.of("header.txt")).issues());
+            VerifyResult beyond = results.get(Path.of("beyond.txt"));
+            assertEquals(Set.of(VerifyResult.Issue.OUT_OF_BOUNDS, VerifyResult.Issue.UNREADABLE), beyond.issues());
+            assertInstanceOf(EOFException.class, beyond.error());
+            assertEquals(Set.of(Path.of("overlap1.txt"), Path.of("overlap2.txt"), Path.of("header.txt"), Path.of("beyond.txt")),
+                         report.failures().stream().map(VerifyResult::filename).collect(Collectors.toSet()));
+
+            digest = results.get(Path.of("good.txt")).digest();
+            assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(bytes("01234")), digest);
+        }
+
+        // Corrupt the data of good.txt: the entry stays valid, but its digest changes.
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            out.write(ByteBuffer.wrap(bytes("X")), dataOffset + 2);
+        }
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            byte[] corrupted = archive.digest("SHA-256").digests().get(Path.of("good.txt"));
+            assertFalse(Arrays.equals(digest, corrupted));
+        }
+    }
+
+    @Test
+    void saveOverSource() throws IOException
+    {
+        Path file = dir.resolve("self.rpa");
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            archive.add(Path.of("kept.txt"), HELLO);
+            archive.add(Path.of("removed.txt"), HELLO);
+            archive.save(file);
+        }
+
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            archive.remove(Path.of("removed.txt"));
+            archive.add(Path.of("added.txt"), bytes("added"));
+            // Files are read from the archive while it is rewritten.
+            archive.save(file);
+            assertEquals(2, archive.list().size());
+            assertArrayEquals(HELLO, archive.read(Path.of("kept.txt")));
+        }
+
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            assertEquals(List.of(Path.of("added.txt"), Path.of("kept.txt")), archive.list().stream().sorted().toList());
+            assertArrayEquals(HELLO, archive.read(Path.of("kept.txt")));
+            assertArrayEquals(bytes("added"), archive.read(Path.of("added.txt")));
+        }
+        assertEquals(List.of(), tempFiles());
+    }
+
+    @Test
+    void failedSaveLeavesTargetUntouched() throws IOException
+    {
+        Path file = dir.resolve("source.rpa");
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            archive.add(Path.of("hello.txt"), HELLO);
+            archive.save(file);
+        }
+        byte[] original = Files.readAllBytes(file);
+        Path other = dir.resolve("other.rpa");
+        byte[] otherContent = bytes("not an archive");
+        Files.write(other, otherContent);
+
+        try (RenPyArchive archive = new RenPyArchive(file, null, null, null, false)) {
+            archive.add(Path.of("broken.txt"), () -> {
+                throw new IOException("unreadable source");
+            });
+            for (Path target : List.of(file, other)) {
+                IOException e = assertThrows(IOException.class, () -> archive.save(target));
+                assertEquals("unreadable source", e.getMessage());
+            }
+            // The archive is still usable.
+            assertArrayEquals(HELLO, archive.read(Path.of("hello.txt")));
+        }
+        assertArrayEquals(original, Files.readAllBytes(file));
+        assertArrayEquals(otherContent, Files.readAllBytes(other));
+        assertEquals(List.of(), tempFiles());
+    }
+}
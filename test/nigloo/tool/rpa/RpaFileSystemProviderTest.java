@@ -0,0 +1,63 @@
+package nigloo.tool.rpa;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RpaFileSystemProviderTest
+{
+    @TempDir
+    Path dir;
+
+    private Path createArchive() throws IOException
+    {
+        Path file = dir.resolve("test.rpa");
+        try (RenPyArchive archive = new RenPyArchive(null, null, null, null, false)) {
+            archive.add(Path.of("script.rpy"), "label start:".getBytes(StandardCharsets.UTF_8));
+            archive.add(Path.of("images/bg.png"), new byte[] {1, 2, 3});
+            archive.save(file);
+        }
+        return file;
+    }
+
+    @Test
+    void installedFromClassPath()
+    {
+        assertTrue(FileSystemProvider.installedProviders().stream()
+                                     .anyMatch(provider -> provider instanceof RpaFileSystemProvider));
+    }
+
+    @Test
+    void newFileSystemFromPath() throws IOException
+    {
+        Path file = createArchive();
+        try (FileSystem fs = FileSystems.newFileSystem(file)) {
+            assertInstanceOf(RpaFileSystem.class, fs);
+            assertEquals("label start:", Files.readString(fs.getPath("/script.rpy")));
+            assertTrue(Files.isDirectory(fs.getPath("/images")));
+        }
+    }
+
+    @Test
+    void newFileSystemFromUri() throws IOException
+    {
+        Path file = createArchive();
+        try (FileSystem fs = FileSystems.newFileSystem(URI.create("rpa:"+file.toUri()), Map.of())) {
+            assertInstanceOf(RpaFileSystem.class, fs);
+            assertEquals(3, Files.readAllBytes(fs.getPath("/images/bg.png")).length);
+        }
+    }
+}
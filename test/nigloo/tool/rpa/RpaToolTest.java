@@ -0,0 +1,144 @@
+package nigloo.tool.rpa;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RpaToolTest
+{
+    private record Result(int status, String out, String err)
+    {
+        List<String> lines()
+        {
+            return out.lines().toList();
+        }
+    }
+
+    @TempDir
+    Path dir;
+
+    private Path archive;
+
+    private static Result run(String... args)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int status = RpaTool.run(args, new PrintStream(out, true, StandardCharsets.UTF_8), new PrintStream(err, true, StandardCharsets.UTF_8));
+        return new Result(status, out.toString(StandardCharsets.UTF_8), err.toString(StandardCharsets.UTF_8));
+    }
+
+    @BeforeEach
+    void createSources() throws IOException
+    {
+        Path sources = dir.resolve("sources");
+        Files.createDirectories(sources.resolve("sub"));
+        Files.writeString(sources.resolve("script.rpy"), "label start:");
+        Files.writeString(sources.resolve("sub/script.rpyc"), "compiled");
+        Files.writeString(sources.resolve("sub/notes.txt"), "notes");
+        archive = dir.resolve("game.rpa");
+    }
+
+    private String archivePath()
+    {
+        return archive.toString();
+    }
+
+    private String sourcesMapping()
+    {
+        return "game="+dir.resolve("sources");
+    }
+
+    @Test
+    void usageErrors()
+    {
+        for (String[] args : List.of(new String[] {},
+                                     new String[] {"-l"},
+                                     new String[] {"-l", "-x", archivePath()},
+                                     new String[] {"-lx", archivePath()},
+                                     new String[] {"-z", archivePath()},
+                                     new String[] {"--list=yes", archivePath()},
+                                     new String[] {"-x", archivePath(), "-j"},
+                                     new String[] {"-x", "-j", "0", archivePath()},
+                                     new String[] {"-c", "--key=xyz", archivePath()},
+                                     new String[] {"-c", archivePath()},
+                                     new String[] {"-d", archivePath()})) {
+            Result result = run(args);
+            assertEquals(2, result.status(), String.join(" ", args));
+            assertTrue(result.err().startsWith("rpatool: "), result.err());
+            assertTrue(result.err().contains("Use rpatool --help for usage details."), result.err());
+            assertEquals("", result.out());
+        }
+        assertFalse(Files.exists(archive));
+
+        Result help = run("-x", "--help", archivePath());
+        assertEquals(0, help.status());
+        assertTrue(help.out().startsWith("Usage: rpatool"));
+        Result version = run("-V");
+        assertEquals(0, version.status());
+        assertTrue(version.out().startsWith("rpatool "));
+    }
+
+    @Test
+    void includeAndExclude() throws IOException
+    {
+        Result create = run("-cq", "--exclude", "*.txt", "-k", "0x1234", archivePath(), sourcesMapping());
+        assertEquals(0, create.status(), create.err());
+        assertEquals(List.of("game/script.rpy", "game/sub/script.rpyc"), run("-l", archivePath()).lines());
+
+        // A glob without '/' matches the file name in any directory, with '/' the whole path.
+        assertEquals(List.of("game/sub/script.rpyc"), run("-l", "-i", "*.rpyc", archivePath()).lines());
+        assertEquals(List.of("game/script.rpy"), run("-l", "-i", "game/*", archivePath()).lines());
+        assertEquals(List.of("game/script.rpy"), run("-l", "--include=script.*", "-e", "**/sub/**", archivePath()).lines());
+
+        Path output = dir.resolve("output");
+        Result extract = run("-xq", "-o", output.toString(), "-i", "*.rpyc", archivePath());
+        assertEquals(0, extract.status(), extract.err());
+        assertEquals("compiled", Files.readString(output.resolve("game/sub/script.rpyc")));
+        assertFalse(Files.exists(output.resolve("game/script.rpy")));
+
+        Result delete = run("-dq", "-i", "*.rpyc", archivePath());
+        assertEquals(0, delete.status(), delete.err());
+        assertEquals(List.of("game/script.rpy"), run("-l", archivePath()).lines());
+
+        Result append = run("-aq", "-i", "*.txt", archivePath(), sourcesMapping());
+        assertEquals(0, append.status(), append.err());
+        assertEquals(List.of("game/script.rpy", "game/sub/notes.txt"), run("-l", archivePath()).lines());
+    }
+
+    @Test
+    void failureStatus() throws IOException
+    {
+        // The archive does not exist.
+        Result list = run("-l", archivePath());
+        assertEquals(1, list.status());
+        assertTrue(list.err().startsWith("rpatool: "), list.err());
+
+        // Missing files are reported, the others are still processed.
+        Result create = run("-cq", archivePath(), sourcesMapping(), dir.resolve("missing").toString());
+        assertEquals(1, create.status());
+        assertTrue(create.err().contains("missing"), create.err());
+        assertEquals(3, run("-l", archivePath()).lines().size());
+
+        Path output = dir.resolve("output");
+        Result extract = run("-xq", "-o", output.toString(), archivePath(), "game/script.rpy", "game/missing.rpy");
+        assertEquals(1, extract.status());
+        assertTrue(extract.err().contains("game/missing.rpy"), extract.err());
+        assertEquals("label start:", Files.readString(output.resolve("game/script.rpy")));
+
+        Result resume = run("-r", archivePath());
+        assertEquals(1, resume.status());
+        assertTrue(resume.err().contains("No interrupted compaction"), resume.err());
+    }
+}